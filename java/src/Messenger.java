@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -22,10 +23,36 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,13 +64,197 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // the connection being opened in the background, see connection().
+   private FutureTask<Connection> _pendingConnection = null;
+
+   // connection settings, kept to reconnect after the connection is lost.
+   private String _url = null;
+   private String _dbUser = null;
+   private String _dbPassword = null;
+
+   // false for the instance running the retention purge in the background.
+   private boolean _interactive = true;
+
+   // attempts made by inTransaction, and the base delay between them.
+   static final int MAX_TRANSACTION_ATTEMPTS = 5;
+   static final long RETRY_BASE_MILLIS = 20;
+
+   // isolation level of the connection outside inTransaction, and the
+   // connection it was read from.
+   private int _sessionIsolation;
+   private Connection _sessionIsolationOf = null;
+
+   /*
+    * Work done in a single transaction by inTransaction. It may be run
+    * again when the transaction is retried, so it must not read input.
+    **/
+   interface Transaction<T> {
+      T run() throws SQLException;
+   }//end Transaction
+
+   // insert statement of PostMessage, prepared once and reused per message.
+   static final String INSERT_MESSAGE =
+      "INSERT INTO message (msg_text, msg_timestamp, sender_login, chat_id) VALUES (?, ?, ?, ?) " +
+      "RETURNING msg_id, sender_login, msg_timestamp, msg_text";
+   private PreparedStatement _postMessageStmt = null;
+
+   // messages removed per statement when purging, and the pause between
+   // batches that leaves room for other sessions' writes.
+   static final int PURGE_BATCH_SIZE = 1000;
+   static final long PURGE_PAUSE_MILLIS = 50;
+
+   // days MESSAGE_LOG entries are kept; a chat cache whose horizon is
+   // older than this may miss changes, sessions are far shorter.
+   static final int LOG_RETENTION_DAYS = 7;
+
+   // hours between two retention purges, over all clients.
+   static final int RETENTION_PURGE_INTERVAL_HOURS = 24;
+
+   // write operations that are rate limited per user. The limits are kept
+   // in this client process only: they start over on every launch and do
+   // not bind other clients of the database. They keep one session from
+   // flooding the database by accident and are not an enforcement.
+   static final String OP_POST_MESSAGE = "post message";
+   static final String OP_CREATE_CHAT = "create chat";
+   static final String OP_ADD_MEMBER = "add member";
+
+   // writes are refused while the average write latency is above this.
+   static final long MAX_WRITE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+   // the average write latency halves every this long without a write, so
+   // a write is let through to measure the database again after a spike.
+   static final long WRITE_LATENCY_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+   /*
+    * Token bucket kept as a single theoretical arrival time (GCRA), so a
+    * request is admitted with one compare-and-set and no lock.
+    **/
+   static class RateLimiter {
+      final long intervalNanos;
+      final long burstNanos;
+      final AtomicLong nextFree = new AtomicLong(System.nanoTime());
+
+      RateLimiter(double perSecond, int burst) {
+         this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+         this.burstNanos = this.intervalNanos * (burst - 1);
+      }
+
+      boolean tryAcquire() {
+         while (true) {
+            long now = System.nanoTime();
+            long current = nextFree.get();
+            long start = Math.max(current, now);
+            if (start - now > burstNanos)
+               return false;
+            if (nextFree.compareAndSet(current, start + intervalNanos))
+               return true;
+         }
+      }
+   }//end RateLimiter
+
+   // rate limiters keyed by user and operation.
+   private final ConcurrentMap<String, RateLimiter> _limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+   // moving average of write latency, the time of its last sample and the
+   // number of refused requests.
+   private final AtomicLong _writeLatencyNanos = new AtomicLong();
+   private final AtomicLong _lastWriteNanos = new AtomicLong(System.nanoTime());
+   private final AtomicLong _throttled = new AtomicLong();
+
+   // messages read per query when exporting a chat.
+   static final int EXPORT_BATCH_SIZE = 1000;
+
+   // longest values accepted for the text columns filled from user input
+   static final int MAX_LOGIN_LENGTH = 50;
+   static final int MAX_PHONE_LENGTH = 16;
+   static final int MAX_STATUS_LENGTH = 140;
+   static final int MAX_MESSAGE_LENGTH = 300;
+
+   // PBKDF2 iterations used for newly stored passwords. The count is kept
+   // per user in USR, so raising it does not invalidate existing hashes.
+   static final int PASSWORD_ITERATIONS = 20000;
+
+   // lifetime of a cached login session and the number of sessions kept.
+   static final long SESSION_TTL_MILLIS = 15 * 60 * 1000L;
+   static final int MAX_SESSIONS = 1024;
+
+   static final SecureRandom random = new SecureRandom();
+
+   /*
+    * A verified login. Holds a cheap salted digest of the password so that
+    * logging in again before the session expires skips both the USR lookup
+    * and the PBKDF2 hash.
+    **/
+   static class Session {
+      final byte[] salt;
+      final byte[] digest;
+      final long expires;
+
+      Session(byte[] salt, byte[] digest, long expires) {
+         this.salt = salt;
+         this.digest = digest;
+         this.expires = expires;
+      }
+   }//end Session
+
+   // columns of a cached message row, as printed by the chat pages.
+   static final List<String> MESSAGE_COLUMNS = java.util.Arrays.asList(
+      "msg_id", "sender_login", "msg_timestamp", "msg_text");
+
+   // orders cached message rows by msg_timestamp then msg_id, newest first,
+   // the order of the keyset on MESSAGE_chat_id_msg_timestamp.
+   static final Comparator<List<String>> NEWEST_FIRST = new Comparator<List<String>>() {
+      public int compare(List<String> a, List<String> b) {
+         int c = b.get(2).compareTo(a.get(2));
+         if (c != 0)
+            return c;
+         return Integer.valueOf(b.get(0).trim()).compareTo(Integer.valueOf(a.get(0).trim()));
+      }
+   };
+
+   // messages on a chat page, also the rows read per fetch of older messages.
+   static final int CHAT_PAGE_SIZE = 10;
+
+   // chats whose messages are cached, and the rows kept over all of them.
+   static final int MAX_CACHED_CHATS = 16;
+   static final int MAX_CACHED_MESSAGES = 5000;
+
+   /*
+    * The newest messages of one chat read during this session, newest
+    * first, whether they reach back to the oldest message, and the
+    * MESSAGE_LOG horizon they reflect.
+    **/
+   static class ChatCache {
+      // no horizon yet, the first applyMessageChanges only takes it
+      long logPosition = Long.MAX_VALUE;
+      boolean complete = false;
+      final List<List<String>> messages = new ArrayList<List<String>>();
+   }//end ChatCache
+
+   // message caches of the chats viewed in this session in access order,
+   // the least recently viewed is evicted first.
+   private final LinkedHashMap<Integer, ChatCache> _chatCache = new LinkedHashMap<Integer, ChatCache>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, ChatCache> eldest) {
+         return size() > MAX_CACHED_CHATS;
+      }
+   };
+
+   // cached sessions in access order, the least recently used is evicted first.
+   private final Map<String, Session> _sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+         return size() > MAX_SESSIONS;
+      }
+   };
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
    /**
-    * Creates a new instance of Messenger
+    * Creates a new instance of Messenger. The driver is loaded and the
+    * connection opened on a background thread, so the menus are shown
+    * while connecting; the first database access waits for it.
     *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
@@ -51,24 +262,177 @@ public class Messenger {
     * @param password the user login password
     * @throws java.sql.SQLException when failed to make a connection.
     */
-   public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
-
+   public Messenger (String dbname, String dbport, final String user, final String passwd) throws SQLException {
+      // constructs the connection URL
+      this("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd, true);
       System.out.print("Connecting to database...");
-      try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
-      }catch (Exception e){
-         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
-      }//end catch
+      System.out.println ("Connection URL: " + this._url + "\n");
+   }//end Messenger
+
+   /*
+    * Starts opening a connection to the given URL in the background. A
+    * non interactive instance does not report the progress of purges.
+    **/
+   private Messenger (final String url, final String user, final String passwd, boolean interactive) {
+      this._url = url;
+      this._dbUser = user;
+      this._dbPassword = passwd;
+      this._interactive = interactive;
+
+      this._pendingConnection = new FutureTask<Connection>(new Callable<Connection>() {
+         public Connection call() throws Exception {
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver");
+            // obtain a physical connection and prepare the message insert
+            Connection connection = DriverManager.getConnection(url, user, passwd);
+            _postMessageStmt = connection.prepareStatement(INSERT_MESSAGE);
+            return connection;
+         }
+      });
+      Thread connector = new Thread(this._pendingConnection, "connect");
+      connector.setDaemon(true);
+      connector.start();
    }//end Messenger
 
+   /*
+    * Returns the physical connection, waiting for the background connect
+    * to finish on first use. Only the interactive session exits when it
+    * cannot connect; a background instance reports the failure instead.
+    **/
+   private Connection connection() throws SQLException {
+      if (this._connection == null){
+         try{
+            this._connection = this._pendingConnection.get();
+         }catch (Exception e){
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (!this._interactive)
+               throw new SQLException("Unable to Connect to Database: " + cause.getMessage());
+            System.err.println("Error - Unable to Connect to Database: " + cause.getMessage() );
+            System.out.println("Make sure you started postgres on this machine");
+            System.exit(-1);
+         }//end catch
+      }//end if
+      return this._connection;
+   }//end connection
+
+   /**
+    * Method to run work in a transaction with the given isolation level.
+    * The transaction is rolled back and the work run again, after a
+    * jittered exponential backoff, when it fails on a serialization
+    * failure or deadlock, or because the connection was lost (the
+    * connection is reopened first). Other errors, runtime exceptions
+    * included, roll back and are rethrown. A connection lost during the
+    * commit is not retried: the commit may have been applied, so running
+    * the work again could apply it twice.
+    *
+    * @param isolation a java.sql.Connection TRANSACTION_ level
+    * @param work the statements to run
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work failed or no attempt succeeded
+    */
+   public <T> T inTransaction(int isolation, Transaction<T> work) throws SQLException {
+      for (int attempt = 1; ; ++attempt){
+         Connection connection = connection();
+         boolean committing = false;
+         if (this._sessionIsolationOf != connection){
+            // the driver asks the server, so the level is read once per connection
+            this._sessionIsolation = connection.getTransactionIsolation();
+            this._sessionIsolationOf = connection;
+         }//end if
+         final int previousIsolation = this._sessionIsolation;
+         try{
+            // set before autocommit is turned off, older drivers send
+            // BEGIN right away and the level must apply to it
+            if (isolation != previousIsolation)
+               connection.setTransactionIsolation(isolation);
+            connection.setAutoCommit(false);
+            T result = work.run();
+            committing = true;
+            connection.commit();
+            return result;
+         }catch (SQLException e){
+            rollback(connection);
+            if (committing && isConnectionLost(e)){
+               reconnect();
+               throw new SQLException("Connection lost while committing, the changes may not have been saved: "
+                  + e.getMessage(), e.getSQLState());
+            }//end if
+            if (attempt >= MAX_TRANSACTION_ATTEMPTS || !isRetryable(e))
+               throw e;
+            if (isConnectionLost(e))
+               reconnect();
+            try{
+               long backoff = RETRY_BASE_MILLIS << (attempt - 1);
+               Thread.sleep(backoff + (long) (random.nextDouble() * backoff));
+            }catch (InterruptedException ie){
+               Thread.currentThread().interrupt();
+               throw e;
+            }//end try
+         }catch (RuntimeException e){
+            // roll back before the finally block turns autocommit back on,
+            // which would commit the work done so far
+            rollback(connection);
+            throw e;
+         }finally{
+            try{
+               if (this._connection == connection){
+                  connection.setAutoCommit(true);
+                  // later autocommit statements keep the session's level
+                  if (isolation != previousIsolation)
+                     connection.setTransactionIsolation(previousIsolation);
+               }//end if
+            }catch (SQLException ignored){
+               // the connection may be gone.
+            }//end try
+         }//end try
+      }//end for
+   }//end inTransaction
+
+   /*
+    * Rolls back the open transaction of a connection that may be gone
+    **/
+   private static void rollback(Connection connection){
+      try{
+         connection.rollback();
+      }catch (SQLException ignored){
+         // the connection may be gone.
+      }//end try
+   }//end rollback
+
+   /*
+    * Tells whether a failed transaction can be run again. The bundled
+    * driver does not always report an SQLState, so the message is checked too.
+    **/
+   static boolean isRetryable(SQLException e){
+      String state = e.getSQLState();
+      String message = String.valueOf(e.getMessage());
+      return "40001".equals(state) || "40P01".equals(state)
+         || message.contains("could not serialize") || message.contains("deadlock detected")
+         || isConnectionLost(e);
+   }//end isRetryable
+
+   static boolean isConnectionLost(SQLException e){
+      String state = e.getSQLState();
+      String message = String.valueOf(e.getMessage());
+      return (state != null && state.startsWith("08"))
+         || message.contains("I/O error") || message.contains("Connection refused");
+   }//end isConnectionLost
+
+   /*
+    * Replaces a lost connection by a new one
+    **/
+   private void reconnect() throws SQLException {
+      try{
+         if (this._postMessageStmt != null)
+            this._postMessageStmt.close();
+         connection().close();
+      }catch (SQLException ignored){
+         // already closed.
+      }//end try
+      this._postMessageStmt = null;
+      this._connection = DriverManager.getConnection(this._url, this._dbUser, this._dbPassword);
+   }//end reconnect
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -78,15 +442,35 @@ public class Messenger {
     */
    public void executeUpdate (String sql) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = connection().createStatement ();
 
       // issues the update instruction
+      long start = System.nanoTime ();
       stmt.executeUpdate (sql);
+      recordWriteLatency (start);
 
       // close the instruction
       stmt.close ();
    }//end executeUpdate
 
+   /**
+    * Method to execute an update SQL statement with bound parameters. The
+    * parameters replace the '?' placeholders of the statement in order.
+    *
+    * @param sql the input SQL string
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare (sql, params);
+      long start = System.nanoTime ();
+      int rowCount = stmt.executeUpdate ();
+      recordWriteLatency (start);
+      stmt.close ();
+      return rowCount;
+   }//end executeUpdate
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -98,11 +482,36 @@ public class Messenger {
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = connection().createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
 
+      int rowCount = printResultSet (rs);
+      stmt.close ();
+      return rowCount;
+   }//end executeQuery
+
+   /**
+    * Method to execute an input query SQL instruction with bound parameters
+    * and output the results to standard out.
+    *
+    * @param query the input query string
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare (query, params);
+      int rowCount = printResultSet (stmt.executeQuery ());
+      stmt.close ();
+      return rowCount;
+   }//end executeQueryAndPrintResult
+
+   /*
+    * Prints every row of a result set, preceded by the column names
+    **/
+   private static int printResultSet (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -126,9 +535,8 @@ public class Messenger {
          System.out.println ();
          ++rowCount;
       }//end while
-      stmt.close ();
       return rowCount;
-   }//end executeQuery
+   }//end printResultSet
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -141,7 +549,7 @@ public class Messenger {
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
       // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      Statement stmt = connection().createStatement (); 
  
       // issues the query instruction 
       ResultSet rs = stmt.executeQuery (query); 
@@ -150,23 +558,59 @@ public class Messenger {
        ** obtains the metadata object for the returned result set.  The metadata 
        ** contains row and column info. 
        */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
- 
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
+      List<List<String>> result = readRecords (rs);
       stmt.close (); 
       return result; 
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction with bound parameters
+    * and return the results as a list of records.
+    *
+    * @param query the input query string
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare (query, params);
+      List<List<String>> result = readRecords (stmt.executeQuery ());
+      stmt.close ();
+      return result;
+   }//end executeQueryAndReturnResult
+
+   /*
+    * Prepares a statement and binds the given parameters in order
+    **/
+   private PreparedStatement prepare (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = connection().prepareStatement (sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
+   /*
+    * Reads every row of a result set into a list of records
+    **/
+   private static List<List<String>> readRecords (ResultSet rs) throws SQLException {
+      /*
+       ** obtains the metadata object for the returned result set.  The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+
+      // iterates through the result set and saves the data returned by the query.
+      List<List<String>> result  = new ArrayList<List<String>>();
+      while (rs.next()){
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
+      }//end while
+      return result;
+   }//end readRecords
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -177,7 +621,7 @@ public class Messenger {
     */
    public int executeQuery (String query) throws SQLException {
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Statement stmt = connection().createStatement ();
 
        // issues the query instruction
        ResultSet rs = stmt.executeQuery (query);
@@ -202,7 +646,7 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	Statement stmt = connection().createStatement ();
 	
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	if (rs.next())
@@ -210,11 +654,845 @@ public class Messenger {
 	return -1;
    }
 
+   /**
+    * Method to insert a message into a chat. The insert statement is
+    * prepared on first use and reused afterwards, and the timestamp is
+    * bound as a parameter instead of being formatted into the SQL text.
+    * The new row is added to the chat's cache at once, so the sender sees
+    * it even while the change log horizon is held back.
+    *
+    * @param text the message text
+    * @param timestamp the time the message was posted
+    * @param sender login of the sender
+    * @param chatId the chat the message belongs to
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public void insertMessage(String text, Timestamp timestamp, String sender, int chatId) throws SQLException {
+      Connection connection = connection();
+      if (this._postMessageStmt == null)
+         this._postMessageStmt = connection.prepareStatement(INSERT_MESSAGE);
+      this._postMessageStmt.setString(1, text);
+      this._postMessageStmt.setTimestamp(2, timestamp);
+      this._postMessageStmt.setString(3, sender);
+      this._postMessageStmt.setInt(4, chatId);
+      long start = System.nanoTime();
+      List<List<String>> inserted = readRecords(this._postMessageStmt.executeQuery());
+      recordWriteLatency(start);
+      ChatCache cache = this._chatCache.get(chatId);
+      if (cache != null)
+         for (List<String> message : inserted)
+            mergeMessage(cache, message);
+   }
+
+   /**
+    * Method to decide whether a user may perform a write operation now.
+    * Each user and operation has its own token bucket, and every write is
+    * refused while the database's average write latency is above
+    * MAX_WRITE_LATENCY_NANOS. Refused requests are counted. This is a
+    * client-side courtesy only, see OP_POST_MESSAGE.
+    *
+    * @param user the user login
+    * @param op the operation, one of the OP_ constants
+    * @return true when the operation may proceed
+    */
+   public boolean admit(String user, String op){
+      String key = user.trim() + "/" + op;
+      RateLimiter limiter = this._limiters.get(key);
+      if (limiter == null){
+         limiter = OP_CREATE_CHAT.equals(op) ? new RateLimiter(0.2, 3) : new RateLimiter(2, 10);
+         RateLimiter existing = this._limiters.putIfAbsent(key, limiter);
+         if (existing != null)
+            limiter = existing;
+      }//end if
+      if (writeLatency(this._writeLatencyNanos.get(), System.nanoTime()) > MAX_WRITE_LATENCY_NANOS){
+         // refusing leaves the average alone, it decays with time until a
+         // write is let through and measures the database again
+         this._throttled.incrementAndGet();
+         return false;
+      }//end if
+      if (limiter.tryAcquire())
+         return true;
+      this._throttled.incrementAndGet();
+      return false;
+   }//end admit
+
+   /**
+    * Method to get the number of write requests refused by admit.
+    *
+    * @return the number of throttled requests
+    */
+   public long getThrottledCount(){
+      return this._throttled.get();
+   }//end getThrottledCount
+
+   /*
+    * Returns the given average write latency at the given time, decayed
+    * by the time passed since its last sample
+    **/
+   private long writeLatency(long latency, long now){
+      long idle = now - this._lastWriteNanos.get();
+      if (latency == 0 || idle <= 0)
+         return latency;
+      return (long) (latency * Math.pow(0.5, (double) idle / WRITE_LATENCY_HALF_LIFE_NANOS));
+   }//end writeLatency
+
+   /*
+    * Folds the latency of a write started at the given time into the
+    * moving average used by admit
+    **/
+   private void recordWriteLatency(long start){
+      long now = System.nanoTime();
+      long sample = now - start;
+      long current;
+      long decayed;
+      do {
+         current = this._writeLatencyNanos.get();
+         decayed = writeLatency(current, now);
+      } while (!this._writeLatencyNanos.compareAndSet(current, decayed + (sample - decayed) / 8));
+      this._lastWriteNanos.set(now);
+   }//end recordWriteLatency
+
+   /**
+    * Method to add members to a chat. The members are inserted by one
+    * multi-row INSERT, so adding them takes a single round trip; the
+    * driver's executeBatch would still send one statement per member.
+    *
+    * @param chatId the chat to add members to
+    * @param members the logins of the new members
+    * @throws java.sql.SQLException when an insert failed
+    */
+   public void addChatMembers(int chatId, Collection<String> members) throws SQLException {
+      if (members.isEmpty())
+         return;
+      StringBuilder sql = new StringBuilder("INSERT INTO chat_list (chat_id, member) VALUES ");
+      Object[] params = new Object[2 * members.size()];
+      int i = 0;
+      for (String member : members){
+         sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+         params[i++] = chatId;
+         params[i++] = member;
+      }//end for
+      executeUpdate(sql.toString(), params);
+   }//end addChatMembers
+
+   /**
+    * Method to delete the messages matching a condition in bounded batches.
+    * Each batch is its own statement, so locks are held briefly and WAL is
+    * written in small steps instead of one cascading delete. A batch takes
+    * whichever matching rows the index scan for the condition reaches
+    * first, so no batch has to sort the remaining rows.
+    *
+    * @param condition SQL condition on MESSAGE with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of messages deleted
+    * @throws java.sql.SQLException when a delete failed
+    */
+   public int purgeMessages(String condition, Object... params) throws SQLException {
+      return purgeRows("messages", "message", "msg_id", condition, params);
+   }//end purgeMessages
+
+   /*
+    * Deletes the rows of a table matching a condition in batches of
+    * PURGE_BATCH_SIZE, selected by the table's key
+    **/
+   private int purgeRows(String what, String table, String key, String condition, Object... params) throws SQLException {
+      String sql = "DELETE FROM " + table + " WHERE " + key + " IN (SELECT " + key + " FROM " + table
+         + " WHERE " + condition + " LIMIT ?)";
+      Object[] batchParams = new Object[params.length + 1];
+      System.arraycopy(params, 0, batchParams, 0, params.length);
+      batchParams[params.length] = PURGE_BATCH_SIZE;
+      int total = 0;
+      int deleted;
+      // the batches are not folded into the write latency seen by admit,
+      // a long purge is no sign that single writes are slow
+      PreparedStatement stmt = prepare(sql, batchParams);
+      try{
+         do {
+            deleted = stmt.executeUpdate();
+            total += deleted;
+            if (deleted == PURGE_BATCH_SIZE){
+               if (this._interactive)
+                  System.out.println("\t" + total + " " + what + " removed...");
+               try{
+                  Thread.sleep(PURGE_PAUSE_MILLIS);
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  break;
+               }//end try
+            }//end if
+         } while (deleted == PURGE_BATCH_SIZE);
+      }finally{
+         stmt.close();
+      }//end try
+      return total;
+   }//end purgeRows
+
+   /**
+    * Method to delete the messages older than their chat's retention
+    * period. A chat without its own retention_days falls back to the
+    * global retention kept in SETTINGS, and messages are kept forever
+    * when neither is set. Every pass binds a fixed cutoff, so the chats
+    * with their own retention are purged through
+    * MESSAGE_chat_id_msg_timestamp and the global pass through
+    * MESSAGE_msg_timestamp.
+    *
+    * @return the number of messages deleted
+    * @throws java.sql.SQLException when a delete failed
+    */
+   public int purgeExpiredMessages() throws SQLException {
+      long start = System.currentTimeMillis();
+      int purged = 0;
+      String global = executeQueryAndReturnResult(
+         "SELECT retention_days FROM settings WHERE id = 1").get(0).get(0);
+      Integer globalDays = global == null ? null : Integer.valueOf(global.trim());
+      List<List<String>> chats = executeQueryAndReturnResult(
+         "SELECT chat_id, retention_days FROM chat WHERE retention_days IS NOT NULL");
+      for (List<String> chat : chats)
+         purged += purgeMessages("chat_id = ? AND msg_timestamp < ?",
+            Integer.parseInt(chat.get(0).trim()), retentionCutoff(start, Integer.parseInt(chat.get(1).trim())));
+      if (globalDays != null)
+         purged += purgeMessages("msg_timestamp < ? AND chat_id NOT IN " +
+            "(SELECT chat_id FROM chat WHERE retention_days IS NOT NULL)", retentionCutoff(start, globalDays));
+      if (purged > 0)
+         System.out.println(String.format("Retention: %d expired messages removed in %d ms",
+            purged, System.currentTimeMillis() - start));
+      return purged;
+   }//end purgeExpiredMessages
+
+   /**
+    * Method to claim the periodic retention purge. At most one client
+    * claims it per RETENTION_PURGE_INTERVAL_HOURS, so clients started
+    * together do not all run the same purge.
+    *
+    * @return true when this client should run the purge now
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public boolean claimRetentionPurge() throws SQLException {
+      return executeUpdate("UPDATE settings SET last_purge = now() WHERE id = 1 AND " +
+         "(last_purge IS NULL OR last_purge < now() - interval '1 hour' * ?)", RETENTION_PURGE_INTERVAL_HOURS) == 1;
+   }//end claimRetentionPurge
+
+   /*
+    * Work run on a background Messenger with its own connection
+    **/
+   interface BackgroundWork {
+      void run(Messenger background) throws SQLException;
+   }//end BackgroundWork
+
+   /*
+    * Runs work on a daemon thread once the session's connection is ready.
+    * The work gets a non-interactive Messenger with its own connection, so
+    * it never holds up the menus or the statements of the session, and a
+    * failure is reported without ending the session.
+    **/
+   private void runInBackground(final String name, final BackgroundWork work){
+      Thread worker = new Thread(new Runnable() {
+         public void run() {
+            try{
+               _pendingConnection.get();
+            }catch (Exception e){
+               // the session reports the failed connection.
+               return;
+            }//end try
+            Messenger background = new Messenger(_url, _dbUser, _dbPassword, false);
+            try{
+               work.run(background);
+            }catch (SQLException e){
+               // a failed purge, or a refused second connection, must not
+               // disturb the session; the next start tries again
+               System.err.println(name + " stopped: " + e.getMessage());
+            }finally{
+               background.cleanup();
+            }//end try
+         }
+      }, name);
+      worker.setDaemon(true);
+      worker.start();
+   }//end runInBackground
+
+   /**
+    * Method to run the background maintenance of a session start: the
+    * removal of accounts deleted earlier, and purgeExpiredMessages and
+    * compactMessageLog when this client claims the retention purge.
+    */
+   public void startRetentionPurge(){
+      runInBackground("Retention purge", new BackgroundWork() {
+         public void run(Messenger background) throws SQLException {
+            background.reapDeletedUsers();
+            if (background.claimRetentionPurge()){
+               background.purgeExpiredMessages();
+               background.compactMessageLog();
+            }//end if
+         }
+      });
+   }//end startRetentionPurge
+
+   /**
+    * Method to close an account at once and remove its data in the
+    * background. The user can no longer log in as soon as this returns;
+    * reapDeletedUsers then purges the messages and removes the row, and
+    * finishes on a later start if the session ends first.
+    *
+    * @param login the account to delete
+    * @throws java.sql.SQLException when failed to mark the account
+    */
+   public void deleteUser(String login) throws SQLException {
+      executeUpdate("UPDATE usr SET deleted_at = now() WHERE login = ?", login);
+      endSession(login);
+      runInBackground("Account removal", new BackgroundWork() {
+         public void run(Messenger background) throws SQLException {
+            background.reapDeletedUsers();
+         }
+      });
+   }//end deleteUser
+
+   /**
+    * Method to remove the accounts marked deleted: the messages of their
+    * chats and their own messages are purged in batches, then the USR row
+    * is deleted and the rest cascades.
+    *
+    * @return the number of accounts removed
+    * @throws java.sql.SQLException when a delete failed
+    */
+   public int reapDeletedUsers() throws SQLException {
+      int reaped = 0;
+      for (List<String> row : executeQueryAndReturnResult("SELECT login FROM usr WHERE deleted_at IS NOT NULL")){
+         String login = row.get(0).trim();
+         purgeMessages("chat_id IN (SELECT chat_id FROM chat WHERE init_sender = ?)", login);
+         purgeMessages("sender_login = ?", login);
+         reaped += executeUpdate("DELETE FROM usr WHERE login = ? AND deleted_at IS NOT NULL", login);
+      }//end for
+      return reaped;
+   }//end reapDeletedUsers
+
+   /*
+    * Returns the time the given number of days before now
+    **/
+   private static Timestamp retentionCutoff(long now, int days){
+      return new Timestamp(now - TimeUnit.DAYS.toMillis(days));
+   }//end retentionCutoff
+
+   /**
+    * Method to verify the credentials of a user. Passwords are stored as
+    * salted PBKDF2 hashes, with the salt and iteration count kept in USR.
+    * A password still stored in plain text is compared directly and
+    * replaced by a hash on the first successful login. Successful logins
+    * are cached as sessions until they expire.
+    *
+    * @param login the user login
+    * @param password the password entered by the user
+    * @return true when the credentials are valid
+    * @throws java.sql.SQLException when failed to read or update the user
+    * @throws java.security.GeneralSecurityException when hashing failed
+    */
+   public boolean verifyLogin(String login, String password) throws SQLException, GeneralSecurityException {
+      Session session = this._sessions.get(login);
+      if (session != null){
+         if (session.expires > System.currentTimeMillis()
+               && MessageDigest.isEqual(session.digest, sessionDigest(session.salt, password)))
+            return true;
+         if (session.expires <= System.currentTimeMillis())
+            this._sessions.remove(login);
+      }//end if
+
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT password, pw_salt, pw_iterations FROM usr WHERE login = ? AND deleted_at IS NULL", login);
+      if (rows.isEmpty())
+         return false;
+      String stored = rows.get(0).get(0).trim();
+      String salt = rows.get(0).get(1);
+      boolean valid;
+      if (salt == null){
+         valid = stored.equals(password);
+         if (valid)
+            storePassword(login, password);
+      }else{
+         int iterations = Integer.parseInt(rows.get(0).get(2));
+         String hash = hashPassword(password, fromHex(salt.trim()), iterations);
+         valid = MessageDigest.isEqual(fromHex(stored), fromHex(hash));
+      }//end if
+      if (valid){
+         byte[] sessionSalt = new byte[16];
+         random.nextBytes(sessionSalt);
+         this._sessions.put(login, new Session(sessionSalt, sessionDigest(sessionSalt, password),
+            System.currentTimeMillis() + SESSION_TTL_MILLIS));
+      }//end if
+      return valid;
+   }//end verifyLogin
+
+   /**
+    * Method to replace the stored password of a user by a freshly salted hash.
+    *
+    * @param login the user login
+    * @param password the new password in plain text
+    * @throws java.sql.SQLException when the update failed
+    * @throws java.security.GeneralSecurityException when hashing failed
+    */
+   public void storePassword(String login, String password) throws SQLException, GeneralSecurityException {
+      byte[] salt = newSalt();
+      executeUpdate("UPDATE usr SET password = ?, pw_salt = ?, pw_iterations = ? WHERE login = ?",
+         hashPassword(password, salt, PASSWORD_ITERATIONS), toHex(salt), PASSWORD_ITERATIONS, login);
+   }//end storePassword
+
+   /**
+    * Method to forget the cached session of a user.
+    *
+    * @param login the user login
+    */
+   public void endSession(String login){
+      this._sessions.remove(login);
+   }//end endSession
+
+   /*
+    * Generates a random salt for a password hash
+    **/
+   static byte[] newSalt(){
+      byte[] salt = new byte[16];
+      random.nextBytes(salt);
+      return salt;
+   }//end newSalt
+
+   /*
+    * Hashes a password with PBKDF2 and returns it hex encoded
+    **/
+   static String hashPassword(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 160);
+      byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+      spec.clearPassword();
+      return toHex(hash);
+   }//end hashPassword
+
+   /*
+    * Cheap salted digest used to recognise the password of a cached session
+    **/
+   static byte[] sessionDigest(byte[] salt, String password) throws GeneralSecurityException {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      try{
+         return md.digest(password.getBytes("UTF-8"));
+      }catch (java.io.UnsupportedEncodingException e){
+         throw new GeneralSecurityException(e);
+      }//end try
+   }//end sessionDigest
+
+   static String toHex(byte[] bytes){
+      StringBuilder sb = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes)
+         sb.append(String.format("%02x", b & 0xff));
+      return sb.toString();
+   }//end toHex
+
+   static byte[] fromHex(String hex){
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int i = 0; i < bytes.length; ++i)
+         bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      return bytes;
+   }//end fromHex
+
+   /**
+    * Method to get the MESSAGE_LOG horizon: every transaction with a
+    * lower txid has ended, so its changes are all visible and none can
+    * still appear. Reading up to the horizon never skips a change that
+    * commits late, which reading by log_id would.
+    *
+    * @return the txid up to which the log is complete
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long getLogHorizon() throws SQLException {
+      return Long.parseLong(executeQueryAndReturnResult(
+         "SELECT txid_snapshot_xmin(txid_current_snapshot())").get(0).get(0));
+   }//end getLogHorizon
+
+   /**
+    * Method to read the changes made to the messages of a chat by the
+    * transactions in [from, to), oldest first. Each change is a record of
+    * log_id, op ('I', 'U' or 'D') and msg_id.
+    *
+    * @param chatId the chat whose changes are read
+    * @param from the horizon of the last read, 0 for all
+    * @param to the current horizon, see getLogHorizon
+    * @return the changes between the horizons
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getMessageChanges(int chatId, long from, long to) throws SQLException {
+      return executeQueryAndReturnResult(
+         "SELECT log_id, op, msg_id FROM message_log " +
+         "WHERE chat_id = ? AND txid >= ? AND txid < ? ORDER BY txid, log_id", chatId, from, to);
+   }//end getMessageChanges
+
+   /**
+    * Method to read the changes made to the messages of every chat after
+    * a position, oldest first, for consumers that follow all of MESSAGE
+    * such as replicas and search indexes. Each change is a record of
+    * txid, log_id, op ('I', 'U' or 'D'), msg_id and chat_id. Only the
+    * changes below the current horizon are returned, so a consumer
+    * passes the txid and log_id of the last change it read as the next
+    * position and never skips a change that commits late. A consumer
+    * that falls more than LOG_RETENTION_DAYS behind has to read MESSAGE
+    * again.
+    *
+    * @param txid the txid of the last change read, 0 for all
+    * @param logId the log_id of the last change read, 0 for all
+    * @param limit the maximum number of changes returned
+    * @return the changes after the position
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getChanges(long txid, int logId, int limit) throws SQLException {
+      return executeQueryAndReturnResult(
+         "SELECT txid, log_id, op, msg_id, chat_id FROM message_log " +
+         "WHERE (txid, log_id) > (?, ?) AND txid < txid_snapshot_xmin(txid_current_snapshot()) " +
+         "ORDER BY txid, log_id LIMIT ?", txid, logId, limit);
+   }//end getChanges
+
+   /**
+    * Method to remove the MESSAGE_LOG entries older than
+    * LOG_RETENTION_DAYS. Purges log a change per message, so without
+    * compaction the log would outgrow MESSAGE.
+    *
+    * @return the number of entries removed
+    * @throws java.sql.SQLException when a delete failed
+    */
+   public int compactMessageLog() throws SQLException {
+      return purgeRows("log entries", "message_log", "log_id", "logged_at < ?",
+         retentionCutoff(System.currentTimeMillis(), LOG_RETENTION_DAYS));
+   }//end compactMessageLog
+
+   /**
+    * Method to get a page of a chat's messages, newest first, skipping
+    * the messages of blocked senders. Messages are read a page at a time
+    * with a keyset on (msg_timestamp, msg_id) and cached, so a page only
+    * reads the rows not seen before. Each call first applies the chat's
+    * MESSAGE_LOG changes up to the current horizon in one round trip:
+    * the messages it names are dropped and those that still exist read
+    * again, which also brings in the new messages at the newest end.
+    *
+    * @param chatId the chat to read
+    * @param blocked the logins whose messages are skipped
+    * @param offset the number of shown messages before the page
+    * @return the messages of the page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getChatPage(int chatId, Set<String> blocked, int offset) throws SQLException {
+      ChatCache cache = this._chatCache.get(chatId);
+      if (cache == null){
+         cache = new ChatCache();
+         this._chatCache.put(chatId, cache);
+      }//end if
+      applyMessageChanges(chatId, cache);
+
+      List<List<String>> page = new ArrayList<List<String>>(CHAT_PAGE_SIZE);
+      int skipped = 0;
+      int next = 0;
+      while (page.size() < CHAT_PAGE_SIZE){
+         if (next == cache.messages.size()){
+            if (cache.complete || fetchOlderMessages(chatId, cache) == 0)
+               break;
+         }//end if
+         List<String> message = cache.messages.get(next++);
+         if (blocked.contains(message.get(1).trim()))
+            continue;
+         if (skipped++ < offset)
+            continue;
+         page.add(message);
+      }//end while
+      evictChatCaches(chatId);
+      return page;
+   }//end getChatPage
+
+   /*
+    * Reads the next CHAT_PAGE_SIZE messages older than the cached ones
+    * and returns how many were read
+    **/
+   private int fetchOlderMessages(int chatId, ChatCache cache) throws SQLException {
+      List<List<String>> older;
+      if (cache.messages.isEmpty()){
+         older = executeQueryAndReturnResult(
+            "SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = ? " +
+            "ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?", chatId, CHAT_PAGE_SIZE);
+      }else{
+         List<String> oldest = cache.messages.get(cache.messages.size() - 1);
+         older = executeQueryAndReturnResult(
+            "SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = ? " +
+            "AND msg_timestamp <= ?::timestamp AND (msg_timestamp < ?::timestamp OR msg_id < ?) " +
+            "ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?",
+            chatId, oldest.get(2), oldest.get(2), Integer.parseInt(oldest.get(0).trim()), CHAT_PAGE_SIZE);
+      }//end if
+      cache.messages.addAll(older);
+      if (older.size() < CHAT_PAGE_SIZE)
+         cache.complete = true;
+      return older.size();
+   }//end fetchOlderMessages
+
+   /*
+    * Reads, in one statement, the current horizon, the messages changed
+    * since the cache's horizon and their current rows. The changed
+    * messages are dropped from the cache and those that still exist put
+    * back in place. A new cache only takes the horizon: its pages are read
+    * after it, so they already hold every earlier change.
+    **/
+   private void applyMessageChanges(int chatId, ChatCache cache) throws SQLException {
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT h.horizon, l.msg_id, m.msg_id, m.sender_login, m.msg_timestamp, m.msg_text " +
+         "FROM (SELECT txid_snapshot_xmin(txid_current_snapshot()) AS horizon) h " +
+         "LEFT JOIN message_log l ON l.chat_id = ? AND l.txid >= ? AND l.txid < h.horizon " +
+         "LEFT JOIN message m ON m.msg_id = l.msg_id", chatId, cache.logPosition);
+      cache.logPosition = Long.parseLong(rows.get(0).get(0).trim());
+      Set<String> changed = new HashSet<String>();
+      List<List<String>> current = new ArrayList<List<String>>();
+      for (List<String> row : rows){
+         if (row.get(1) == null || !changed.add(row.get(1).trim()))
+            continue;
+         if (row.get(2) != null)
+            current.add(row.subList(2, 6));
+      }//end for
+      if (changed.isEmpty())
+         return;
+      for (java.util.Iterator<List<String>> it = cache.messages.iterator(); it.hasNext(); )
+         if (changed.contains(it.next().get(0).trim()))
+            it.remove();
+      for (List<String> message : current)
+         mergeMessage(cache, message);
+   }//end applyMessageChanges
+
+   /*
+    * Puts a message in its place in a chat cache. A message older than
+    * the cached ones is left to fetchOlderMessages.
+    **/
+   private static void mergeMessage(ChatCache cache, List<String> message){
+      if (!cache.complete && (cache.messages.isEmpty()
+            || NEWEST_FIRST.compare(message, cache.messages.get(cache.messages.size() - 1)) > 0))
+         return;
+      int at = Collections.binarySearch(cache.messages, message, NEWEST_FIRST);
+      if (at >= 0)
+         cache.messages.set(at, message);
+      else
+         cache.messages.add(-at - 1, message);
+   }//end mergeMessage
+
+   /*
+    * Drops the least recently viewed chat caches, other than the given
+    * chat's, while more than MAX_CACHED_MESSAGES rows are cached
+    **/
+   private void evictChatCaches(int chatId){
+      int cached = 0;
+      for (ChatCache cache : this._chatCache.values())
+         cached += cache.messages.size();
+      for (java.util.Iterator<Map.Entry<Integer, ChatCache>> it = this._chatCache.entrySet().iterator();
+           it.hasNext() && cached > MAX_CACHED_MESSAGES; ){
+         Map.Entry<Integer, ChatCache> entry = it.next();
+         if (entry.getKey() == chatId)
+            continue;
+         cached -= entry.getValue().messages.size();
+         it.remove();
+      }//end for
+   }//end evictChatCaches
+
+   /**
+    * Method to drop the cached messages of a chat after it was deleted.
+    *
+    * @param chatId the chat whose cache is dropped
+    */
+   public void invalidateChat(int chatId){
+      this._chatCache.remove(chatId);
+   }//end invalidateChat
+
+   /**
+    * Method to get the logins on a user's block list.
+    *
+    * @param login the user login
+    * @return the blocked logins, without padding
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Set<String> getBlockedLogins(String login) throws SQLException {
+      Set<String> blocked = new HashSet<String>();
+      for (List<String> row : executeQueryAndReturnResult(
+            "SELECT ulc.list_member FROM user_list_contains ulc, usr u " +
+            "WHERE ulc.list_id = u.block_list AND u.login = ?", login))
+         blocked.add(row.get(0).trim());
+      return blocked;
+   }//end getBlockedLogins
+
+   /*
+    * Prints records in the format of executeQueryAndPrintResult
+    **/
+   static void printRecords(List<String> columns, List<List<String>> records){
+      if (records.isEmpty())
+         return;
+      for (String column : columns)
+         System.out.print(column + "\t");
+      System.out.println();
+      for (List<String> record : records){
+         for (String value : record)
+            System.out.print(value + "\t");
+         System.out.println();
+      }//end for
+   }//end printRecords
+
+   /**
+    * Method to export every message of the chats a user is a member of to
+    * a file with one JSON object per line. Chats are exported in chat_id
+    * order and their messages read in (msg_timestamp, msg_id) order,
+    * EXPORT_BATCH_SIZE rows at a time from MESSAGE_chat_id_msg_timestamp,
+    * so memory use does not depend on the chat size. After each chat a
+    * checkpoint file records the chat_id and the output length; an
+    * interrupted export resumes after that chat, or starts over when the
+    * checkpoint cannot be read or the output no longer holds it. The
+    * chats are exported one after the other: the checkpoint only records
+    * a prefix of the chats in order, which chats finishing out of order
+    * on several connections would not keep, and every extra connection
+    * counts against the server's max_connections.
+    *
+    * @param user the user whose chats are exported
+    * @param fileName the output file
+    * @return the number of messages written by this call
+    * @throws java.sql.SQLException when failed to execute a query
+    * @throws java.io.IOException when failed to write the output
+    */
+   public int exportChats(String user, String fileName) throws SQLException, IOException {
+      File checkpoint = new File(fileName + ".ckpt");
+      int lastChat = readExportCheckpoint(checkpoint, fileName);
+      if (lastChat < 0){
+         checkpoint.delete();
+         new File(fileName).delete();
+      }//end if
+
+      List<List<String>> chats = executeQueryAndReturnResult(
+         "SELECT chat_id FROM chat_list WHERE member = ? AND chat_id > ? ORDER BY chat_id", user, lastChat);
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), "UTF-8"));
+      int exported = 0;
+      try{
+         for (List<String> chat : chats){
+            int chatId = Integer.parseInt(chat.get(0).trim());
+            List<List<String>> batch = executeQueryAndReturnResult(
+               "SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = ? " +
+               "ORDER BY msg_timestamp, msg_id LIMIT ?", chatId, EXPORT_BATCH_SIZE);
+            while (true){
+               for (List<String> message : batch){
+                  out.write("{\"chat_id\":" + chatId
+                     + ",\"msg_id\":" + message.get(0)
+                     + ",\"sender_login\":" + jsonString(message.get(1))
+                     + ",\"msg_timestamp\":" + jsonString(message.get(2))
+                     + ",\"msg_text\":" + jsonString(message.get(3)) + "}\n");
+               }//end for
+               exported += batch.size();
+               if (batch.size() < EXPORT_BATCH_SIZE)
+                  break;
+               List<String> last = batch.get(batch.size() - 1);
+               batch = executeQueryAndReturnResult(
+                  "SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = ? " +
+                  "AND msg_timestamp >= ?::timestamp AND (msg_timestamp > ?::timestamp OR msg_id > ?) " +
+                  "ORDER BY msg_timestamp, msg_id LIMIT ?",
+                  chatId, last.get(2), last.get(2), Integer.parseInt(last.get(0).trim()), EXPORT_BATCH_SIZE);
+            }//end while
+            out.flush();
+            writeExportCheckpoint(checkpoint, chatId, new File(fileName).length());
+         }//end for
+      }finally{
+         out.close();
+      }//end try
+      checkpoint.delete();
+      return exported;
+   }//end exportChats
+
+   /*
+    * Returns the last chat of the checkpoint and cuts the output back to
+    * the checkpointed length, or -1 to start over when there is no
+    * usable checkpoint or the output is shorter than it
+    **/
+   private static int readExportCheckpoint(File checkpoint, String fileName) throws IOException {
+      if (!checkpoint.exists())
+         return -1;
+      int lastChat;
+      long length;
+      BufferedReader reader = new BufferedReader(new FileReader(checkpoint));
+      try{
+         String line = reader.readLine();
+         if (line == null)
+            return -1;
+         String[] fields = line.trim().split(" ");
+         if (fields.length != 2)
+            return -1;
+         lastChat = Integer.parseInt(fields[0]);
+         length = Long.parseLong(fields[1]);
+      }catch (NumberFormatException e){
+         return -1;
+      }finally{
+         reader.close();
+      }//end try
+      // a missing or shorter output does not hold the checkpointed chats
+      if (lastChat < 0 || length < 0 || new File(fileName).length() < length)
+         return -1;
+      // drop anything written after the checkpoint
+      RandomAccessFile output = new RandomAccessFile(fileName, "rw");
+      try{
+         output.setLength(length);
+      }finally{
+         output.close();
+      }//end try
+      return lastChat;
+   }//end readExportCheckpoint
+
+   /*
+    * Writes the checkpoint to a temporary file and renames it over the
+    * old one, so a crash never leaves a truncated checkpoint
+    **/
+   private static void writeExportCheckpoint(File checkpoint, int chatId, long length) throws IOException {
+      File tmp = new File(checkpoint.getPath() + ".tmp");
+      Writer ckpt = new FileWriter(tmp);
+      try{
+         ckpt.write(chatId + " " + length + "\n");
+      }finally{
+         ckpt.close();
+      }//end try
+      Files.move(tmp.toPath(), checkpoint.toPath(),
+         StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end writeExportCheckpoint
+
+   /*
+    * Quotes a value as a JSON string, trimming the padding of char columns
+    **/
+   static String jsonString(String value){
+      if (value == null)
+         return "null";
+      value = value.trim();
+      StringBuilder sb = new StringBuilder(value.length() + 2);
+      sb.append('"');
+      for (int i = 0; i < value.length(); ++i){
+         char c = value.charAt(i);
+         switch (c){
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  sb.append(String.format("\\u%04x", (int) c));
+               else
+                  sb.append(c);
+         }//end switch
+      }//end for
+      return sb.append('"').toString();
+   }//end jsonString
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
+         if (this._throttled.get() > 0){
+            System.out.println(this._throttled.get() + " requests were throttled");
+         }//end if
+         if (this._connection == null && this._pendingConnection.isDone()){
+            try{
+               this._connection = this._pendingConnection.get ();
+            }catch (Exception e){
+               // never connected.
+            }//end try
+         }//end if
+         if (this._postMessageStmt != null){
+            this._postMessageStmt.close ();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -241,14 +1519,14 @@ public class Messenger {
       Greeting();
       Messenger esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Messenger object and creates a physical
-         // connection.
+         // instantiate the Messenger object, which creates the physical
+         // connection in the background.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new Messenger (dbname, dbport, user, "");
+         // remove messages past their retention period while the menus run
+         esql.startRetentionPurge();
 
          boolean keepon = true;
          while(keepon) {
@@ -277,6 +1555,7 @@ public class Messenger {
                 System.out.println("3. Browse Chats");
                 System.out.println("4. Update Status");
                 System.out.println("5. Create a new Chat");
+                System.out.println("6. Export chat history");
                 System.out.println(".........................");
                 System.out.println("8. Delete account");
                 System.out.println("9. Log out");
@@ -286,6 +1565,7 @@ public class Messenger {
                    case 3: ListChats(esql, authorisedUser); break;
                    case 4: UpdateStatus(esql, authorisedUser); break;
                    case 5: CreateChat(esql, authorisedUser); break;
+                   case 6: ExportChats(esql, authorisedUser); break;
                    case 8: DropUser(esql, authorisedUser);
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
@@ -335,49 +1615,101 @@ public class Messenger {
       return input;
    }//end readChoice
 
+   /*
+    * Reads an id (chat_id, msg_id) from the keyboard
+    * @throws IllegalArgumentException when the input is not a valid id
+    **/
+   public static int readId(String prompt) throws IOException {
+      System.out.print(prompt);
+      return parseId(in.readLine());
+   }//end readId
+
+   /*
+    * Parses a non-negative integer typed by the user
+    * @throws IllegalArgumentException when the input is not a valid number
+    **/
+   public static int parseId(String input) {
+      input = input.trim();
+      try{
+         int id = Integer.parseInt(input);
+         if (id >= 0)
+            return id;
+      }catch (NumberFormatException e){
+         // reported below.
+      }//end try
+      throw new IllegalArgumentException("Invalid number: " + input);
+   }//end parseId
+
+   /*
+    * Parses a retention period in days, which must be at least one day
+    * @throws IllegalArgumentException when the input is not a valid period
+    **/
+   public static int parseDays(String input) {
+      int days = parseId(input);
+      if (days == 0)
+         throw new IllegalArgumentException("Invalid retention: " + input.trim());
+      return days;
+   }//end parseDays
+
+   /*
+    * Reads a text value from the keyboard
+    * @throws IllegalArgumentException when the text is longer than maxLength
+    **/
+   public static String readText(String prompt, String name, int maxLength) throws IOException {
+      System.out.print(prompt);
+      String input = in.readLine();
+      if (input.length() > maxLength)
+         throw new IllegalArgumentException(
+            String.format("%s cannot be longer than %d characters!", name, maxLength));
+      return input;
+   }//end readText
+
    /*
     * Creates a new user with privided login, passowrd and phoneNum
     * An empty block and contact list would be generated and associated with a user
     **/
-   public static void CreateUser(Messenger esql){
+   public static void CreateUser(final Messenger esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
+         final String login = readText("\tEnter user login: ", "Login", MAX_LOGIN_LENGTH);
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
-         System.out.print("\tEnter user phone: ");
-         String phone = in.readLine();
-
-   //Creating empty contact\block lists for a user
-   esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-   int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-   int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-   String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
+         final String phone = readText("\tEnter user phone: ", "Phone", MAX_PHONE_LENGTH);
+         final byte[] salt = newSalt();
+         final String hash = hashPassword(password, salt, PASSWORD_ITERATIONS);
+
+         // the lists and the user are created together or not at all
+         esql.inTransaction(Connection.TRANSACTION_READ_COMMITTED, new Transaction<Void>() {
+            public Void run() throws SQLException {
+               //Creating empty contact\block lists for a user
+               esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
+               int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
+               esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
+               int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
+
+               esql.executeUpdate("INSERT INTO USR (phoneNum, login, password, pw_salt, pw_iterations, block_list, contact_list) VALUES (?,?,?,?,?,?,?)",
+                  phone, login, hash, toHex(salt), PASSWORD_ITERATIONS, block_id, contact_id);
+               return null;
+            }
+         });
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }//end
    
-    public static void CreateChat(Messenger esql, String user){
+    public static void CreateChat(final Messenger esql, final String user){
         try{
             int count = 0;
             List<String> myList = new ArrayList<String>();
             boolean cont = true; 
             System.out.println("Enter the login of the user you wish to add to chat.");
             System.out.println("After the final member of the chat, enter an empty login.");
-            System.out.print("\tlogin to add to new chat: ");
-            String login = in.readLine();
+            String login = readText("\tlogin to add to new chat: ", "Login", MAX_LOGIN_LENGTH);
             myList.add(login);
             count += 1;
             while (cont)
             {
-                System.out.print("\tlogin to add to new chat: ");
-                login = in.readLine();
+                login = readText("\tlogin to add to new chat: ", "Login", MAX_LOGIN_LENGTH);
                 if (login.length() == 0)
                 {
                     cont = false;
@@ -391,32 +1723,54 @@ public class Messenger {
             String chat_type = "private";
             if (count > 1){
                 chat_type = "group";}
-                
-            //Creating empty chat for a user
-            String query = String.format("INSERT INTO chat(chat_type, init_sender) " +
-            "VALUES ('%s', '%s');", chat_type, user);
-            esql.executeUpdate(query);
-            int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-            query = String.format("INSERT INTO chat_list (chat_id, member) " +
-            "VALUES (%d, '%s'); ", chat_id, user);
-            esql.executeUpdate(query);
-            for (int i = 0; i < count; i++)
-            {
-                query = String.format("INSERT INTO chat_list (chat_id, member) " +
-                "VALUES (%d, '%s'); ", chat_id, myList.get(i));
-                esql.executeUpdate(query);
+            if (!esql.admit(user, OP_CREATE_CHAT)){
+                System.out.println("Too many new chats, please wait a moment and try again!");
+                return;
             }
-            String chatID = String.format("%d", chat_id);
-            PostMessage(esql, user, chatID);
+                
+            // the creator and every distinct login are added in one batch
+            final Set<String> members = new java.util.LinkedHashSet<String>();
+            members.add(user);
+            members.addAll(myList);
+            final String type = chat_type;
+            // the chat and its members are created together or not at all
+            int chat_id = esql.inTransaction(Connection.TRANSACTION_READ_COMMITTED, new Transaction<Integer>() {
+                public Integer run() throws SQLException {
+                    //Creating empty chat for a user
+                    esql.executeUpdate("INSERT INTO chat(chat_type, init_sender) VALUES (?, ?)", type, user);
+                    int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
+                    esql.addChatMembers(chat_id, members);
+                    return chat_id;
+                }
+            });
+            PostMessage(esql, user, chat_id);
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
     }//end
 
+   /*
+    * Exports the messages of every chat of the user to a file, resuming
+    * an interrupted export to the same file
+    **/
+   public static void ExportChats(Messenger esql, String user){
+      try{
+         String fileName = user.trim() + "_chats.ndjson";
+         System.out.print("\tEnter export file name (empty for " + fileName + "): ");
+         String input = in.readLine().trim();
+         if (input.length() > 0)
+            fileName = input;
+         int exported = esql.exportChats(user, fileName);
+         System.out.println (exported + " messages exported to " + fileName);
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end
+
    public static void DropUser(Messenger esql, String user){
       try{
-       //Drop user
-       esql.executeUpdate(String.format("DELETE FROM USR WHERE login = '%s';", user));
+       //Close the account now, its chats and messages are purged in the background
+       esql.deleteUser(user);
          System.out.println ("User successfully deleted!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -429,14 +1783,11 @@ public class Messenger {
     **/
    public static String LogIn(Messenger esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
+         String login = readText("\tEnter user login: ", "Login", MAX_LOGIN_LENGTH);
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s';", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.verifyLogin(login, password))
 		return login;
          return null;
       }catch(Exception e){
@@ -447,17 +1798,16 @@ public class Messenger {
 
    public static void AddToBlock(Messenger esql, String user){
       try{
-      	System.out.print("\tEnter login to add to Block List: ");
-	String newContact = in.readLine();
-    if (newContact == user){
+	String newContact = readText("\tEnter login to add to Block List: ", "Login", MAX_LOGIN_LENGTH);
+    if (newContact.equals(user.trim())){
         System.out.println("Cannot add self to Block List");
         return;
     }
-	String query = String.format("INSERT INTO USER_LIST_CONTAINS (list_id, list_member)" +
+	String query = "INSERT INTO USER_LIST_CONTAINS (list_id, list_member)" +
         "(SELECT u1.block_list AS list_id, u2.login AS list_member " +
         "FROM usr u1, usr u2 " +
-        "WHERE u1.login = '%s' AND u2.login = '%s');", user, newContact);
-	esql.executeUpdate(query);
+        "WHERE u1.login = ? AND u2.login = ?)";
+	esql.executeUpdate(query, user, newContact);
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -465,13 +1815,12 @@ public class Messenger {
 
    public static void RemoveFromBlock(Messenger esql, String user){
       try{
-      	System.out.print("\tEnter login to remove from Block List: ");
-	String newContact = in.readLine();
-	String query = String.format("DELETE FROM user_list_contains " +
+	String newContact = readText("\tEnter login to remove from Block List: ", "Login", MAX_LOGIN_LENGTH);
+	String query = "DELETE FROM user_list_contains " +
         "WHERE list_id IN " +
-            "(SELECT block_list AS list_id FROM usr WHERE login = '%s') " +
-            "AND list_member = '%s';", user, newContact);
-	esql.executeUpdate(query);
+            "(SELECT block_list AS list_id FROM usr WHERE login = ?) " +
+            "AND list_member = ?";
+	esql.executeUpdate(query, user, newContact);
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -479,17 +1828,16 @@ public class Messenger {
 
    public static void AddToContact(Messenger esql, String user){
       try{
-      	System.out.print("\tEnter login to add to Contact List: ");
-	String newContact = in.readLine();
-    if (newContact == user){
+	String newContact = readText("\tEnter login to add to Contact List: ", "Login", MAX_LOGIN_LENGTH);
+    if (newContact.equals(user.trim())){
         System.out.println("Cannot add self to Contact List");
         return;
     }
-	String query = String.format("INSERT INTO USER_LIST_CONTAINS (list_id, list_member)" +
+	String query = "INSERT INTO USER_LIST_CONTAINS (list_id, list_member)" +
         "(SELECT u1.contact_list AS list_id, u2.login AS list_member " +
         "FROM usr u1, usr u2 " +
-        "WHERE u1.login = '%s' AND u2.login = '%s');", user, newContact);
-	esql.executeUpdate(query);
+        "WHERE u1.login = ? AND u2.login = ?)";
+	esql.executeUpdate(query, user, newContact);
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -497,13 +1845,12 @@ public class Messenger {
 
    public static void RemoveFromContact(Messenger esql, String user){
       try{
-      	System.out.print("\tEnter login to remove from Contact List: ");
-	String newContact = in.readLine();
-	String query = String.format("DELETE FROM user_list_contains " +
+	String newContact = readText("\tEnter login to remove from Contact List: ", "Login", MAX_LOGIN_LENGTH);
+	String query = "DELETE FROM user_list_contains " +
         "WHERE list_id IN " +
-            "(SELECT contact_list AS list_id FROM usr WHERE login = '%s') " +
-            "AND list_member = '%s';", user, newContact);
-	esql.executeUpdate(query);
+            "(SELECT contact_list AS list_id FROM usr WHERE login = ?) " +
+            "AND list_member = ?";
+	esql.executeUpdate(query, user, newContact);
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -543,13 +1890,13 @@ public class Messenger {
 
    public static void ListContacts(Messenger esql, String user){
       try{
-        String query = String.format(" SELECT login, status " +
+        String query = " SELECT login, status " +
         " FROM usr " +
         " WHERE login IN ( SELECT list_member " +
                          " FROM user_list_contains ulc " +
                          " WHERE ulc.list_id IN(SELECT contact_list " +
 					      " FROM usr " +
-					      " WHERE login = '%s')); ", user);
+					      " WHERE login = ?)) ";
         
 /*        String query = String.format("select login, status " +
                       "from USR where login " +
@@ -565,7 +1912,7 @@ public class Messenger {
                           ")"+
                       ";", user);*/
         System.out.println("\nContact List:");
-        esql.executeQueryAndPrintResult(query);
+        esql.executeQueryAndPrintResult(query, user);
         ManageContactList(esql, user);
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -574,13 +1921,13 @@ public class Messenger {
 
    public static void BlockContacts(Messenger esql, String user){
       try{
-        String query = String.format("SELECT login, status " +
+        String query = "SELECT login, status " +
         " FROM usr " +
         " WHERE login IN ( SELECT list_member " +
                          " FROM user_list_contains ulc " +
                          " WHERE ulc.list_id IN(SELECT block_list " +
 					      " FROM usr " +
-					      " WHERE login = '%s')); " , user);
+					      " WHERE login = ?)) ";
 /*        String query = String.format("select login " +
                       "from USR where login " +
                       "in ( " +
@@ -595,66 +1942,53 @@ public class Messenger {
                           ")"+
                       ";", user);*/
         System.out.println("\nBlocked Contacts:");
-        esql.executeQueryAndPrintResult(query);
+        esql.executeQueryAndPrintResult(query, user);
         ManageBlockList(esql, user);
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }//end
 
-    public static void PostMessage(Messenger esql, String user, String chatID){
+    public static void PostMessage(Messenger esql, String user, int chatID){
         try{
-            System.out.print("\tEnter message: ");
-            String msg_text = in.readLine();
-            if (msg_text.length() > 300){
-                System.out.println("Message cannot be longer than 300 characters!");
+            String msg_text = readText("\tEnter message: ", "Message", MAX_MESSAGE_LENGTH);
+            if (!esql.admit(user, OP_POST_MESSAGE)){
+                System.out.println("Too many messages, please wait a moment and try again!");
                 return;
             }
-            Calendar calendar = Calendar.getInstance();
-            java.sql.Timestamp ts = new java.sql.Timestamp(calendar.getTime().getTime());
-            String msg_timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(ts);
-            String query = String.format("INSERT INTO message (msg_text, msg_timestamp, sender_login, chat_id) " +
-            "VALUES ('%s', '%s', '%s', %s);", msg_text, msg_timestamp, user, chatID);
-            esql.executeUpdate(query);
+            esql.insertMessage(msg_text, new Timestamp(System.currentTimeMillis()), user, chatID);
             ViewChatMessages(esql,user,chatID,0);
         } catch(Exception e){
             System.err.println(e.getMessage());
         }
     }
 
-    public static void EditSingleMessage(Messenger esql, String user, String chatID){
+    public static void EditSingleMessage(Messenger esql, String user, int chatID){
         try{
-            System.out.print("\tEnter msg_id to Edit: ");
-            String msgID = in.readLine();
-            System.out.print("\tEnter new message text: ");
-            String msgText = in.readLine();
-            if (msgText.length() > 300)
-            {
-				System.out.println("Message text cannot be longer than 300 characters!");
-				return;
-			}
-            String query = String.format("UPDATE message " +
-            "SET msg_text = '%s' " +
-            "WHERE msg_id = %s AND chat_id = %s;", msgText, msgID, chatID);
-            esql.executeUpdate(query);
+            int msgID = readId("\tEnter msg_id to Edit: ");
+            String msgText = readText("\tEnter new message text: ", "Message text", MAX_MESSAGE_LENGTH);
+            String query = "UPDATE message " +
+            "SET msg_text = ? " +
+            "WHERE msg_id = ? AND chat_id = ?";
+            esql.executeUpdate(query, msgText, msgID, chatID);
             EditMessages(esql, user, chatID, 0);
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
     }//end
     
-	public static void EditMessages(Messenger esql, String user, String chatID, int offset)
+	public static void EditMessages(Messenger esql, String user, int chatID, int offset)
     {
         try
         {
-            String query = String.format("SELECT m.msg_id, m.sender_login, m.msg_timestamp, m.msg_text " +
+            String query = "SELECT m.msg_id, m.sender_login, m.msg_timestamp, m.msg_text " +
             "FROM message m " +
-            "WHERE m.chat_id = '%s' AND m.sender_login = '%s' " +
+            "WHERE m.chat_id = ? AND m.sender_login = ? " +
             "ORDER BY msg_timestamp DESC " + 
-            "LIMIT 10 OFFSET '%s' ", chatID, user, offset);
+            "LIMIT 10 OFFSET ?";
             String temp = String.format("\nEditable Messages from chatID: %s ", chatID);
             System.out.println(temp);
-            esql.executeQueryAndPrintResult(query);
+            esql.executeQueryAndPrintResult(query, chatID, user, offset);
             System.out.println("\n----------------------------------");
             System.out.println(" What would you like to do?");
             System.out.println("----------------------------------");
@@ -704,48 +2038,85 @@ public class Messenger {
         }
     }
     
-    public static void DeleteChat(Messenger esql, String chatID)
+    /*
+     * Deletes a chat owned by the user. The messages are purged in batches
+     * that commit on their own, so a large chat does not hold its locks for
+     * the whole purge; the owner check and the delete of the chat itself
+     * run in one transaction, with the chat row locked.
+     **/
+    public static void DeleteChat(final Messenger esql, final String user, final int chatID)
     {   
 		try{
-            String query = String.format("DELETE FROM chat WHERE chat_id = %s", chatID);
-			esql.executeUpdate(query);
+            if (!isChatOwner(esql, user, chatID, false)){
+                System.out.println("Only the owner can delete a chat!");
+                return;
+            }
+            int purged = esql.purgeMessages("chat_id = ?", chatID);
+            boolean deleted = esql.inTransaction(Connection.TRANSACTION_READ_COMMITTED, new Transaction<Boolean>() {
+                public Boolean run() throws SQLException {
+                    if (!isChatOwner(esql, user, chatID, true))
+                        return false;
+                    // messages posted during the purge go with the chat
+                    esql.executeUpdate("DELETE FROM chat WHERE chat_id = ?", chatID);
+                    return true;
+                }
+            });
+            if (!deleted){
+                System.out.println("Only the owner can delete a chat!");
+                return;
+            }
+            esql.invalidateChat(chatID);
+            System.out.println (purged + " messages removed");
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
 		
 	}
+
+    /*
+     * Tells whether the user owns a chat, optionally locking the chat row
+     * until the end of the transaction
+     **/
+    static boolean isChatOwner(Messenger esql, String user, int chatID, boolean lock) throws SQLException {
+        List<List<String>> owner = esql.executeQueryAndReturnResult(
+            "SELECT init_sender FROM chat WHERE chat_id = ?" + (lock ? " FOR UPDATE" : ""), chatID);
+        return !owner.isEmpty() && owner.get(0).get(0) != null && owner.get(0).get(0).trim().equals(user.trim());
+    }//end isChatOwner
     
-    public static void DeleteSingleMessage(Messenger esql, String user, String chatID){
+    public static void DeleteSingleMessage(Messenger esql, String user, int chatID){
         try{
-            System.out.print("\tEnter msg_id to Delete: ");
-            String msgID = in.readLine();
-            String query = String.format("DELETE FROM message " +
-            "WHERE msg_id = %s AND chat_id = %s;", msgID, chatID);
-            esql.executeUpdate(query);
+            int msgID = readId("\tEnter msg_id to Delete: ");
+            // the sender or the chat owner may delete a message, checked by
+            // the delete itself so no other write can come in between
+            String query = "DELETE FROM message " +
+            "WHERE msg_id = ? AND chat_id = ? AND (sender_login = ? OR EXISTS " +
+            "(SELECT 1 FROM chat WHERE chat_id = ? AND init_sender = ?))";
+            if (esql.executeUpdate(query, msgID, chatID, user, chatID, user) == 0)
+                System.out.println("You can only delete your own messages or those of your chats!");
             DeleteMessages(esql, user, chatID, 0);
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
     }//end
    
-    public static void DeleteMessages(Messenger esql, String user, String chatID, int offset)
+    public static void DeleteMessages(Messenger esql, String user, int chatID, int offset)
     {
         try
         {
-			String loginquery = String.format("SELECT init_sender FROM chat WHERE chat_id = '%s';", chatID);
-			List<List<String>>myList = esql.executeQueryAndReturnResult(loginquery);
-			String chat_owner = myList.get(0).get(0);
-			chat_owner = chat_owner.replace(" ","");
-			if (user.compareTo(chat_owner) == 0)
-			{   
-				String query = String.format("SELECT m.msg_id, m.sender_login, m.msg_timestamp, m.msg_text " +
-	            "FROM message m, chat c " +
-	            "WHERE m.chat_id = c.chat_id AND m.chat_id = '%s' AND (m.sender_login = '%s' OR c.init_sender = '%s') " +
-	            "ORDER BY msg_timestamp DESC " + 
-	            "LIMIT 10 OFFSET '%s' ", chatID, user, user, offset);
+			// only picks the page shown, DeleteChat and DeleteSingleMessage
+			// check the owner again when they write
+			if (isChatOwner(esql, user, chatID, false))
+			{
+				// the owner may delete every message of the chat, so the page
+				// only needs the chat's own MESSAGE rows (no join with CHAT)
+				String query = "SELECT msg_id, sender_login, msg_timestamp, msg_text " +
+	            "FROM message " +
+	            "WHERE chat_id = ? " +
+	            "ORDER BY msg_timestamp DESC " +
+	            "LIMIT 10 OFFSET ?";
 	            String temp = String.format("\nDeletable Messages from chatID: %s ", chatID);
 	            System.out.println(temp);
-	            esql.executeQueryAndPrintResult(query);
+	            esql.executeQueryAndPrintResult(query, chatID, offset);
 	            System.out.println("\n----------------------------------");
 	            System.out.println(" What would you like to do?");
 	            System.out.println("----------------------------------");
@@ -766,7 +2137,7 @@ public class Messenger {
 	                        break;
 	                    case 3: DeleteSingleMessage(esql, user, chatID);
 	                        break;
-	                    case 4: DeleteChat(esql, chatID);
+	                    case 4: DeleteChat(esql, user, chatID);
 	                        break;
 	                    case 5: System.out.println("Returning to Main Menu");
 	                        break;
@@ -787,7 +2158,7 @@ public class Messenger {
 	                        break;
 	                    case 2: DeleteSingleMessage(esql, user, chatID);
 	                        break;
-	                    case 3: DeleteChat(esql, chatID);
+	                    case 3: DeleteChat(esql, user, chatID);
 	                        break;
 	                    case 4: System.out.println("Returning to Main Menu");
 	                        break;
@@ -798,14 +2169,14 @@ public class Messenger {
 			}
 			else
 			{
-				String query = String.format("SELECT msg_id, sender_login, msg_timestamp, msg_text " +
+				String query = "SELECT msg_id, sender_login, msg_timestamp, msg_text " +
 	            "FROM message " +
-	            "WHERE chat_id = '%s' AND sender_login = '%s' " +
+	            "WHERE chat_id = ? AND sender_login = ? " +
 	            "ORDER BY msg_timestamp DESC " + 
-	            "LIMIT 10 OFFSET '%s' ", chatID, user, offset);
+	            "LIMIT 10 OFFSET ?";
 	            String temp = String.format("\nDeletable Messages from chatID: %s ", chatID);
 	            System.out.println(temp);
-	            esql.executeQueryAndPrintResult(query);
+	            esql.executeQueryAndPrintResult(query, chatID, user, offset);
 	            System.out.println("\n----------------------------------");
 	            System.out.println(" What would you like to do?");
 	            System.out.println("----------------------------------");
@@ -855,18 +2226,26 @@ public class Messenger {
             System.err.println (e.getMessage());
         }
     }
-    public static void ViewChatMessages(Messenger esql, String user, String chatID, int offset){
+    public static void ViewChatMessages(Messenger esql, String user, int chatID, int offset){
         try{
-            String query = String.format("SELECT msg_id, sender_login," +
-            " msg_timestamp, msg_text FROM message " +
-            "WHERE chat_id = '%s' AND sender_login NOT IN (SELECT ulc.list_member AS sender_login " +
-                                                          "FROM user_list_contains ulc, usr u " +
-                                                          "WHERE ulc.list_id = u.block_list AND u.login = '%s') " +
-            "ORDER BY msg_timestamp DESC " + 
-            "LIMIT 10 OFFSET '%s'", chatID, user, offset);
+            ViewChatMessages(esql, user, chatID, offset, esql.getBlockedLogins(user));
+        } catch(Exception e){
+            System.err.println (e.getMessage());
+        }
+    }//end
+
+    /*
+     * Shows a page of a chat. The block list is read once when the chat is
+     * opened and kept while the user turns its pages.
+     **/
+    static void ViewChatMessages(Messenger esql, String user, int chatID, int offset, Set<String> blocked){
+        try{
+            // pages are served from the session's message cache, skipping
+            // messages from senders on the user's block list
+            List<List<String>> page = esql.getChatPage(chatID, blocked, offset);
             String temp = String.format("\nchatID: %s", chatID);
             System.out.println(temp);
-            esql.executeQueryAndPrintResult(query);
+            printRecords(MESSAGE_COLUMNS, page);
             System.out.println("\n----------------------------------");
             System.out.println(" What would you like to do?");
             System.out.println("----------------------------------");
@@ -880,9 +2259,9 @@ public class Messenger {
 				System.out.println("5. Edit messages");
             	System.out.println("6. Return to Main Menu");
             	switch(readChoice()){
-                    case 1: ViewChatMessages(esql, user, chatID, offset+10);
+                    case 1: ViewChatMessages(esql, user, chatID, offset+10, blocked);
                     	break;
-				    case 2: ViewChatMessages(esql, user, chatID, offset-10);
+				    case 2: ViewChatMessages(esql, user, chatID, offset-10, blocked);
 						break;
 				    case 3: PostMessage(esql,user,chatID);
 						break;
@@ -904,7 +2283,7 @@ public class Messenger {
 				System.out.println("4. Edit messages");
             	System.out.println("5. Return to Main Menu");
             	switch(readChoice()){
-                    case 1: ViewChatMessages(esql, user, chatID, offset+10);
+                    case 1: ViewChatMessages(esql, user, chatID, offset+10, blocked);
                     	break;
 		    case 2: PostMessage(esql,user,chatID);
 			break;
@@ -925,67 +2304,91 @@ public class Messenger {
 
     public static void ViewChat(Messenger esql, String user){
         try{
-            System.out.print("\tEnter the chat_id to view:");
-            String chatID = in.readLine();
+            int chatID = readId("\tEnter the chat_id to view:");
             ViewChatMessages(esql, user, chatID, 0);
         } catch(Exception e){
             System.err.println (e.getMessage());
         }
     }//end
     
-    public static void AddMembersToChat(Messenger esql, String user, String chatID)
+    public static void AddMembersToChat(Messenger esql, String user, int chatID)
     {
 		try
 		{
-			System.out.print("\tEnter login to add to Chat: ");
-			String newContact = in.readLine();
-			String query = String.format("INSERT INTO chat_list (chat_id, member) " +
-			"VALUES (%s, '%s')", chatID, newContact);
-			esql.executeUpdate(query);
+			String newContact = readText("\tEnter login to add to Chat: ", "Login", MAX_LOGIN_LENGTH);
+			if (!esql.admit(user, OP_ADD_MEMBER)){
+				System.out.println("Too many requests, please wait a moment and try again!");
+				return;
+			}
+			esql.executeUpdate("INSERT INTO chat_list (chat_id, member) VALUES (?, ?)", chatID, newContact);
 		}catch(Exception e)
 		{
 			System.err.println (e.getMessage ());
 		}
 	}    
 	
-    public static void RemoveMembersFromChat(Messenger esql, String user, String chatID)
+    public static void RemoveMembersFromChat(Messenger esql, String user, int chatID)
     {
 		try
 		{
-			System.out.print("\tEnter login to remove from Chat: ");
-			String newContact = in.readLine();
-			String query = String.format("DELETE FROM chat_list " +
-			"WHERE chat_id = %s AND member = '%s';", chatID, newContact);
-			esql.executeUpdate(query);
+			String newContact = readText("\tEnter login to remove from Chat: ", "Login", MAX_LOGIN_LENGTH);
+			esql.executeUpdate("DELETE FROM chat_list " +
+			"WHERE chat_id = ? AND member = ?", chatID, newContact);
 		}catch(Exception e)
 		{
 			System.err.println (e.getMessage ());
 		}
 	}
 	
+    /*
+     * Sets how many days the messages of a chat owned by the user are kept.
+     * An empty input keeps messages until the global retention applies.
+     **/
+    public static void SetChatRetention(Messenger esql, String user, int chatID)
+    {
+		try
+		{
+			System.out.print("\tEnter retention in days (empty for none): ");
+			String days = in.readLine().trim();
+			int updated;
+			if (days.length() == 0)
+				updated = esql.executeUpdate("UPDATE chat SET retention_days = NULL " +
+				"WHERE chat_id = ? AND init_sender = ?", chatID, user);
+			else
+				updated = esql.executeUpdate("UPDATE chat SET retention_days = ? " +
+				"WHERE chat_id = ? AND init_sender = ?", parseDays(days), chatID, user);
+			if (updated == 0)
+				System.out.println("You can only set the retention of chats you own!");
+		}catch(Exception e)
+		{
+			System.err.println (e.getMessage ());
+		}
+	}
+
     public static void EditChat(Messenger esql, String user){
         try{
-			String chatID;
-			String query = String.format ("SELECT chat_id FROM chat WHERE init_sender = '%s';", user);
+			int chatID;
 			System.out.println("\nChats you own:");
-			esql.executeQueryAndPrintResult(query);
+			esql.executeQueryAndPrintResult("SELECT chat_id FROM chat WHERE init_sender = ?", user);
             System.out.println("\n----------------------------------");
             System.out.println("  What would you like to do?");
             System.out.println("----------------------------------");
             System.out.println("1. Add users to a chat");
             System.out.println("2. Remove users from a chat");
-            System.out.println("3. Return to Main Menu");
+            System.out.println("3. Set message retention of a chat");
+            System.out.println("4. Return to Main Menu");
             switch(readChoice())
             {
-				case 1: System.out.print("\tEnter chat_id to Add members to: ");
-					chatID = in.readLine();
+				case 1: chatID = readId("\tEnter chat_id to Add members to: ");
 					AddMembersToChat(esql, user, chatID);
 					break;
-				case 2: System.out.print("\tEnter chat_id to Remove members from: ");
-					chatID = in.readLine();
+				case 2: chatID = readId("\tEnter chat_id to Remove members from: ");
 					RemoveMembersFromChat(esql, user, chatID);
 					break;
-				case 3: System.out.println("Returning to Main Menu");
+				case 3: chatID = readId("\tEnter chat_id to set retention of: ");
+					SetChatRetention(esql, user, chatID);
+					break;
+				case 4: System.out.println("Returning to Main Menu");
 					break;
 				default: System.out.println("Invalid Choice! Returning to Main Menu");
 					break;
@@ -996,12 +2399,22 @@ public class Messenger {
     }//end
     
    public static void ListChats(Messenger esql, String user){
+        ListChats(esql, user, 0);
+   }//end
+
+   /*
+    * Lists one page of the user's chats. Member count and last activity
+    * are kept on CHAT, so the page reads the user's CHAT_LIST rows and
+    * their chats only, not the members of every chat.
+    **/
+   public static void ListChats(Messenger esql, String user, int offset){
    try{
-        String query = String.format("SELECT * FROM " +
-		"CHAT_lIST WHERE chat_id = ANY (SELECT chat_id FROM CHAT_LIST " +
-		"WHERE member = '%s')",user);
-        System.out.println("\nChat List:");
-        esql.executeQueryAndPrintResult(query);
+        String query = "SELECT c.chat_id, c.chat_type, c.member_count, c.last_activity " +
+		"FROM chat_list cl, chat c " +
+		"WHERE cl.member = ? AND c.chat_id = cl.chat_id " +
+		"ORDER BY cl.chat_id LIMIT 10 OFFSET ?";
+        System.out.println(String.format("\nChat List (page %d):", (offset/10)+1));
+        esql.executeQueryAndPrintResult(query, user, offset);
 	}
 	catch(Exception e){
         	System.err.println (e.getMessage ());
@@ -1012,35 +2425,36 @@ public class Messenger {
       	System.out.println("1. View a chat");
       	System.out.println("2. Add/Remove users from a chat");
       	System.out.println("3. Return to Main Menu");
+      	System.out.println("4. Load next page");
+      	if (offset >= 10)
+      		System.out.println("5. Load previous page");
       	switch(readChoice()){
 		case 1: ViewChat(esql, user); break;
 		case 2: EditChat(esql, user); break;
 		case 3: System.out.println("Returning to Main Menu") ; break;
+		case 4: ListChats(esql, user, offset+10); break;
+		case 5: if (offset >= 10) ListChats(esql, user, offset-10);
+			else System.out.println("incorrect input");
+			break;
 		default: System.out.println("incorrect input"); break;
       	}
    }//end
 
    public static void UpdateStatus(Messenger esql, String user){
         try{
-			String statusquery = String.format("SELECT status FROM usr WHERE login = '%s';", user);
-			List<List<String>> myList = esql.executeQueryAndReturnResult(statusquery);
-			String status = String.format("Current Status: " + myList.get(0).get(0));
+			String statusquery = "SELECT status FROM usr WHERE login = ?";
+			List<List<String>> myList = esql.executeQueryAndReturnResult(statusquery, user);
+			String status = "Current Status: " + myList.get(0).get(0);
 			System.out.println("\n----------------------------------------");
 			System.out.println(status);
 			System.out.println("\n----------------------------------------");
-            System.out.print("\tEnter new Status text: ");
-            String msgText = in.readLine();
-            if (msgText.length() > 140)
-            {
-				System.out.println("Status text cannot be longer than 140 characters!");
-				return;
-			}
-            String query = String.format("UPDATE usr " +
-            "SET status = '%s' " +
-            "WHERE login = '%s'", msgText, user);
-            esql.executeUpdate(query);
-            myList = esql.executeQueryAndReturnResult(statusquery);
-			status = String.format("New Status: " + myList.get(0).get(0));
+            String msgText = readText("\tEnter new Status text: ", "Status text", MAX_STATUS_LENGTH);
+            String query = "UPDATE usr " +
+            "SET status = ? " +
+            "WHERE login = ?";
+            esql.executeUpdate(query, msgText, user);
+            myList = esql.executeQueryAndReturnResult(statusquery, user);
+			status = "New Status: " + myList.get(0).get(0);
 			System.out.println("\n----------------------------------------");
 			System.out.println(status);
 			System.out.println("\n----------------------------------------");
@@ -0,0 +1,62 @@
+#!/bin/bash
+# Prints the plans of every Messenger query and fails when a query falls
+# back to a sequential scan of a large table or an explicit sort.
+# SAMPLE_LOGIN, SAMPLE_OTHER, SAMPLE_CHAT and SAMPLE_MSG pick the rows the
+# templates use, the defaults match load_data.sql.
+#
+# The shared buffers each statement touched are written to BUFFERS_OUT when
+# it is set. When BUFFER_BASELINE names such a file, the check also fails
+# for a statement that touches more than twice its baseline (plus
+# BUFFER_SLACK pages, for statements that only touch a handful). Record a
+# baseline with BUFFERS_OUT and compare later runs against it, or compare
+# a large dataset against a small one, as test_db.sh does with SCALES.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SAMPLES="-v login=${SAMPLE_LOGIN:-Judy} -v other=${SAMPLE_OTHER:-Norma} -v chat_id=${SAMPLE_CHAT:-0} -v msg_id=${SAMPLE_MSG:-1}"
+BUFFER_SLACK=${BUFFER_SLACK:-20}
+# ON_ERROR_STOP makes a failing template fail the check instead of
+# leaving its plan out
+PLANS=$(psql -p "$PGPORT" "$DB_NAME" -X -q -v ON_ERROR_STOP=1 $SAMPLES < "$DIR/../src/explain_queries.sql") || exit 1
+echo "$PLANS"
+FAILED=0
+
+FLAGGED=$(echo "$PLANS" | grep -E "Seq Scan on (message|message_log|chat_list|chat|usr|user_list_contains|user_list)\b|Sort  \(")
+if [ -n "$FLAGGED" ]; then
+	echo
+	echo "Plans needing an index:"
+	echo "$FLAGGED"
+	FAILED=1
+fi
+
+# "<handler>#<n> <pages>" per statement, from the Buffers line of the top
+# plan node (it includes the nodes below it); planning buffers are left out
+BUFFERS=$(echo "$PLANS" | awk '
+	/^== / { label = substr($0, 4); gsub(/ /, "_", label) }
+	/QUERY PLAN/ { n[label]++; top = 1 }
+	/^ *Planning/ { top = 0 }
+	top && /Buffers: shared/ {
+		pages = 0
+		for (i = 1; i <= NF; i++) {
+			if ($i ~ /^(hit|read)=/) { split($i, kv, "="); pages += kv[2] }
+			# local and temp buffers follow the shared ones after a comma
+			if ($i ~ /,$/) break
+		}
+		print label "#" n[label], pages
+		top = 0
+	}')
+if [ -n "$BUFFERS_OUT" ]; then
+	echo "$BUFFERS" > "$BUFFERS_OUT"
+fi
+
+if [ -n "$BUFFER_BASELINE" ]; then
+	GROWN=$(echo "$BUFFERS" | awk -v slack=$BUFFER_SLACK '
+		FNR == NR { base[$1] = $2; next }
+		($1 in base) && $2 > 2 * base[$1] + slack { print $1, base[$1], "->", $2 }
+	' "$BUFFER_BASELINE" -)
+	if [ -n "$GROWN" ]; then
+		echo
+		echo "Statements touching more than twice the buffers of $BUFFER_BASELINE:"
+		echo "$GROWN"
+		FAILED=1
+	fi
+fi
+exit $FAILED
@@ -0,0 +1,92 @@
+#!/bin/bash
+# Starts a throwaway PostgreSQL server in a temporary directory, creates the
+# schema, loads a generated dataset and runs the given command against it
+# with PGHOST, PGPORT and DB_NAME set (an interactive shell when no command
+# is given). SAMPLE_LOGIN, SAMPLE_OTHER, SAMPLE_CHAT and SAMPLE_MSG are set
+# to rows of the generated data for explain_queries.sh. The server and its
+# files are removed when the command exits.
+#
+#   bash test_db.sh bash explain_queries.sh
+#
+# SCALES lists the numbers of users to load, smallest first; the database
+# is reloaded and the command run once per scale, with SCALE set. Each run
+# writes its buffer counts to BUFFERS_OUT and compares them against the
+# previous scale through BUFFER_BASELINE, so a query whose reads grow with
+# the data fails the check even where its plan looks right. The largest
+# default makes CHAT and MESSAGE large enough that the planner prefers
+# their indexes over sequential scans.
+#
+# Uses initdb and pg_ctl from PATH or from /usr/lib/postgresql/*/bin. The
+# server refuses to run as root, so when started by root they run as
+# TEST_DB_OSUSER (nobody by default) through runuser; the clients still run
+# as the caller.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SCALES=${SCALES:-5000 50000}
+export DB_NAME=${DB_NAME:-messenger_test}
+export PGPORT=${TEST_PGPORT:-54329}
+
+if ! command -v initdb > /dev/null; then
+	PGBIN=$(ls -d /usr/lib/postgresql/*/bin 2> /dev/null | sort -V | tail -1)
+	if [ -z "$PGBIN" ]; then
+		echo "initdb not found, install PostgreSQL or add its bin directory to PATH"
+		exit 1
+	fi
+	export PATH=$PGBIN:$PATH
+fi
+
+TMP=$(mktemp -d)
+export PGHOST=$TMP
+SERVER=
+if [ "$(id -u)" -eq 0 ]; then
+	if ! command -v runuser > /dev/null; then
+		echo "runuser not found, run as a user other than root"
+		exit 1
+	fi
+	chown "${TEST_DB_OSUSER:-nobody}" $TMP || exit 1
+	SERVER="runuser -u ${TEST_DB_OSUSER:-nobody} --"
+fi
+# runs a server command from $TMP, the server's user may not be able to
+# read the caller's directory
+server() {
+	(cd $TMP && $SERVER "$@")
+}
+cleanup() {
+	server pg_ctl -D $TMP/data -m immediate stop > /dev/null 2>&1
+	rm -rf $TMP
+}
+trap cleanup EXIT
+
+# the superuser role is named after the caller, so the clients need no -U
+server initdb -D $TMP/data -A trust -U ${USER:-$(whoami)} > $TMP/initdb.log || { cat $TMP/initdb.log; exit 1; }
+server pg_ctl -D $TMP/data -l $TMP/server.log -w \
+	-o "-p $PGPORT -k $TMP -c listen_addresses=localhost -c fsync=off -c full_page_writes=off" \
+	start > /dev/null || { cat $TMP/server.log; exit 1; }
+
+if [ $# -eq 0 ]; then
+	set -- ${SHELL:-bash}
+fi
+
+# user_0 is in chat 0 with user_1 to user_9, and lists user_1 to user_5
+# and user_7; user_10 is in neither
+export SAMPLE_LOGIN=user_0
+export SAMPLE_OTHER=user_10
+export SAMPLE_CHAT=0
+unset BUFFER_BASELINE
+STATUS=0
+for SCALE in $SCALES; do
+	export SCALE
+	dropdb --if-exists $DB_NAME && createdb $DB_NAME || exit 1
+	# the DROP TABLE statements fail on the fresh database
+	psql -q -X $DB_NAME < $DIR/../src/create_tables.sql 2>&1 | grep -v "does not exist"
+	psql -q -X -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_indexes.sql || exit 1
+	psql -q -X -v ON_ERROR_STOP=1 -v scale=$SCALE $DB_NAME < $DIR/../src/generate_data.sql > /dev/null || exit 1
+	echo "Loaded $SCALE users into $DB_NAME on port $PGPORT"
+	export SAMPLE_MSG=$(psql -X -A -t -c "SELECT min(msg_id) FROM message WHERE chat_id = 0" $DB_NAME)
+
+	export BUFFERS_OUT=$TMP/buffers_$SCALE
+	"$@" || STATUS=1
+	if [ -s $BUFFERS_OUT ]; then
+		export BUFFER_BASELINE=$BUFFERS_OUT
+	fi
+done
+exit $STATUS
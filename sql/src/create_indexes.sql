@@ -1,60 +1,78 @@
---PRIMARY KEY INDEXES
+-- PRIMARY KEYS ALREADY CREATE UNIQUE INDEXES ON
+-- USER_LIST(list_id), USR(login), USER_LIST_CONTAINS(list_id, list_member),
+-- CHAT(chat_id), CHAT_LIST(chat_id, member) AND MESSAGE(msg_id)
 
-CREATE INDEX USER_LIST_list_id 
-ON USER_LIST
+CREATE INDEX USER_LIST_CONTAINS_list_member
+ON USER_LIST_CONTAINS
 USING BTREE
-(list_id);
+(list_member);
 
 
-CREATE INDEX USR_login
-ON USR
+-- a user's chats in chat_id order, for the chat list pages
+CREATE INDEX CHAT_LIST_member_chat_id
+ON CHAT_LIST
 USING BTREE
-(login);
-
+(member, chat_id);
 
-CREATE INDEX USER_LIST_CONTAINS_list_id
-ON USER_LIST_CONTAINS
+-- INDEXES FOR USED OFTEN
+-- chat pages filter on chat_id and order by msg_timestamp, msg_id is the
+-- tie-break of the keysets the chat view and the export page with
+CREATE INDEX MESSAGE_chat_id_msg_timestamp
+ON MESSAGE
 USING BTREE
-(list_id);
+(chat_id, msg_timestamp, msg_id);
 
 
-CREATE INDEX USER_LIST_CONTAINS_list_member
-ON USER_LIST_CONTAINS
+CREATE INDEX MESSAGE_sender_login
+ON MESSAGE
 USING BTREE
-(list_member);
+(sender_login);
 
 
-CREATE INDEX CHAT_chat_id 
+CREATE INDEX CHAT_init_sender
 ON CHAT
 USING BTREE
-(chat_id);
+(init_sender);
 
 
-CREATE INDEX CHAT_LIST_chat_id
-ON CHAT_LIST
+-- the accounts closed but not yet removed, see Messenger.reapDeletedUsers
+CREATE INDEX USR_deleted_at
+ON USR
 USING BTREE
-(chat_id);
+(login)
+WHERE deleted_at IS NOT NULL;
 
 
-CREATE INDEX CHAT_LIST_member
-ON CHAT_LIST
+-- the few chats with their own retention, for the retention purge
+CREATE INDEX CHAT_retention_days
+ON CHAT
 USING BTREE
-(member);
+(chat_id, retention_days)
+WHERE retention_days IS NOT NULL;
 
 
-CREATE INDEX MESSAGE_msg_id
+CREATE INDEX MESSAGE_msg_timestamp
 ON MESSAGE
 USING BTREE
-(msg_id);
+(msg_timestamp);
 
--- INDEXES FOR USED OFTEN
-CREATE INDEX MESSAGE_sender_login
-ON MESSAGE
+
+-- changes of a chat by transaction, see Messenger.getMessageChanges
+CREATE INDEX MESSAGE_LOG_chat_id_txid
+ON MESSAGE_LOG
 USING BTREE
-(sender_login);
+(chat_id, txid, log_id);
 
 
-CREATE INDEX CHAT_init_sender
-ON CHAT
+-- changes of all chats by transaction, see Messenger.getChanges
+CREATE INDEX MESSAGE_LOG_txid
+ON MESSAGE_LOG
 USING BTREE
-(init_sender);
+(txid, log_id);
+
+
+-- old changes, for compacting the log
+CREATE INDEX MESSAGE_LOG_logged_at
+ON MESSAGE_LOG
+USING BTREE
+(logged_at);
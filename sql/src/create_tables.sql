@@ -1,3 +1,5 @@
+DROP TABLE SETTINGS;
+DROP TABLE MESSAGE_LOG;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
@@ -14,9 +16,12 @@ CREATE TABLE USR(
 	login char(50), 
 	phoneNum CHAR(16) UNIQUE NOT NULL, 
 	password char(50) NOT NULL,
+	pw_salt char(32),
+	pw_iterations integer,
 	status char(140),
 	block_list integer,
 	contact_list integer,
+	deleted_at timestamp,
 	Primary Key(login),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
@@ -32,6 +37,9 @@ CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
 	init_sender char(50),
+	retention_days integer CHECK (retention_days > 0),
+	member_count integer NOT NULL DEFAULT 0,
+	last_activity timestamp,
 	PRIMARY KEY(chat_id), 
 	FOREIGN KEY(init_sender) REFERENCES USR(login)
 		ON DELETE CASCADE);
@@ -47,7 +55,7 @@ CREATE TABLE CHAT_LIST(
 
 CREATE TABLE MESSAGE(
 	msg_id serial, 
-	msg_text char(300) NOT NULL, 
+	msg_text varchar(300) NOT NULL, 
 	msg_timestamp timestamp NOT NULL,
 	sender_login char(50),
 	chat_id integer,
@@ -57,4 +65,74 @@ CREATE TABLE MESSAGE(
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id)
 		ON DELETE CASCADE);
 
+-- settings shared by every client, in a single row. retention_days is the
+-- global message retention for chats without their own, NULL to keep
+-- messages; it is set by the administrator, e.g.
+--   UPDATE SETTINGS SET retention_days = 365;
+-- last_purge is claimed by the client that runs the retention purge.
+CREATE TABLE SETTINGS(
+	id integer DEFAULT 1 CHECK (id = 1),
+	retention_days integer CHECK (retention_days > 0),
+	last_purge timestamp,
+	PRIMARY KEY(id));
 
+INSERT INTO SETTINGS(id) VALUES (1);
+
+CREATE TABLE MESSAGE_LOG(
+	log_id serial,
+	op char(1) NOT NULL,
+	msg_id integer NOT NULL,
+	chat_id integer NOT NULL,
+	txid bigint NOT NULL DEFAULT txid_current(),
+	logged_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(log_id));
+
+-- every insert, edit and delete of a message is logged by the statement
+-- that made it, with the id of its transaction. log_id is allocated
+-- before commit, so consumers follow MESSAGE by txid and read only the
+-- transactions older than txid_snapshot_xmin, which have all ended
+CREATE OR REPLACE FUNCTION log_message_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		INSERT INTO MESSAGE_LOG(op, msg_id, chat_id) VALUES ('D', OLD.msg_id, OLD.chat_id);
+		RETURN OLD;
+	END IF;
+	INSERT INTO MESSAGE_LOG(op, msg_id, chat_id)
+	VALUES (CASE WHEN TG_OP = 'INSERT' THEN 'I' ELSE 'U' END, NEW.msg_id, NEW.chat_id);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER MESSAGE_log_change
+AFTER INSERT OR UPDATE OR DELETE ON MESSAGE
+FOR EACH ROW EXECUTE PROCEDURE log_message_change();
+
+-- CHAT.member_count and CHAT.last_activity are kept up to date by the
+-- writes to CHAT_LIST and MESSAGE, so listing chats never counts members
+CREATE OR REPLACE FUNCTION count_chat_member() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		UPDATE CHAT SET member_count = member_count - 1 WHERE chat_id = OLD.chat_id;
+		RETURN OLD;
+	END IF;
+	UPDATE CHAT SET member_count = member_count + 1 WHERE chat_id = NEW.chat_id;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER CHAT_LIST_count_member
+AFTER INSERT OR DELETE ON CHAT_LIST
+FOR EACH ROW EXECUTE PROCEDURE count_chat_member();
+
+CREATE OR REPLACE FUNCTION touch_chat() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT SET last_activity = NEW.msg_timestamp
+	WHERE chat_id = NEW.chat_id
+	AND (last_activity IS NULL OR last_activity < NEW.msg_timestamp);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER MESSAGE_touch_chat
+AFTER INSERT ON MESSAGE
+FOR EACH ROW EXECUTE PROCEDURE touch_chat();
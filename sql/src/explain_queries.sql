@@ -0,0 +1,222 @@
+-- EXPLAIN (ANALYZE, BUFFERS) OF EVERY QUERY TEMPLATE USED BY Messenger.java
+-- The sample values are psql variables, so the same templates run against
+-- load_data.sql and generate_data.sql:
+--   psql -v login=<login> -v other=<login> -v chat_id=<chat> -v msg_id=<message> < explain_queries.sql
+-- other is a user outside chat_id and outside the lists of login.
+-- Statements that modify data run inside a transaction that is rolled back.
+-- Each \echo names the handler of the statements after it, explain_queries.sh
+-- reports buffers under that name.
+
+\echo == LogIn
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT password, pw_salt, pw_iterations FROM usr WHERE login = :'login' AND deleted_at IS NULL;
+
+\echo == ListContacts
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT login, status FROM usr
+WHERE login IN (SELECT list_member FROM user_list_contains ulc
+                WHERE ulc.list_id IN (SELECT contact_list FROM usr WHERE login = :'login'));
+
+\echo == BlockContacts
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT login, status FROM usr
+WHERE login IN (SELECT list_member FROM user_list_contains ulc
+                WHERE ulc.list_id IN (SELECT block_list FROM usr WHERE login = :'login'));
+
+\echo == ListChats
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT c.chat_id, c.chat_type, c.member_count, c.last_activity
+FROM chat_list cl, chat c
+WHERE cl.member = :'login' AND c.chat_id = cl.chat_id
+ORDER BY cl.chat_id LIMIT 10 OFFSET 0;
+
+\echo == EditChat
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT chat_id FROM chat WHERE init_sender = :'login';
+
+\echo == ViewChatMessages (getBlockedLogins, getChatPage)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT ulc.list_member FROM user_list_contains ulc, usr u
+WHERE ulc.list_id = u.block_list AND u.login = :'login';
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = :chat_id
+ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 10;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = :chat_id
+AND msg_timestamp <= now()::timestamp AND (msg_timestamp < now()::timestamp OR msg_id < 1000)
+ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 10;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT h.horizon, l.msg_id, m.msg_id, m.sender_login, m.msg_timestamp, m.msg_text
+FROM (SELECT txid_snapshot_xmin(txid_current_snapshot()) AS horizon) h
+LEFT JOIN message_log l ON l.chat_id = :chat_id AND l.txid >= 0 AND l.txid < h.horizon
+LEFT JOIN message m ON m.msg_id = l.msg_id;
+
+\echo == getMessageChanges
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT log_id, op, msg_id FROM message_log
+WHERE chat_id = :chat_id AND txid >= 0 AND txid < txid_snapshot_xmin(txid_current_snapshot())
+ORDER BY txid, log_id;
+
+\echo == getChanges
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT txid, log_id, op, msg_id, chat_id FROM message_log
+WHERE (txid, log_id) > (0, 0) AND txid < txid_snapshot_xmin(txid_current_snapshot())
+ORDER BY txid, log_id LIMIT 1000;
+
+\echo == EditMessages, DeleteMessages (not the chat owner)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message
+WHERE chat_id = :chat_id AND sender_login = :'login'
+ORDER BY msg_timestamp DESC LIMIT 10 OFFSET 0;
+
+\echo == DeleteMessages (chat owner)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT init_sender FROM chat WHERE chat_id = :chat_id;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message
+WHERE chat_id = :chat_id
+ORDER BY msg_timestamp DESC LIMIT 10 OFFSET 0;
+
+\echo == ExportChats
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT chat_id FROM chat_list WHERE member = :'login' AND chat_id > -1 ORDER BY chat_id;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = :chat_id
+ORDER BY msg_timestamp, msg_id LIMIT 1000;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT msg_id, sender_login, msg_timestamp, msg_text FROM message WHERE chat_id = :chat_id
+AND msg_timestamp >= '-infinity'::timestamp AND (msg_timestamp > '-infinity'::timestamp OR msg_id > 0)
+ORDER BY msg_timestamp, msg_id LIMIT 1000;
+
+\echo == UpdateStatus
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT status FROM usr WHERE login = :'login';
+
+BEGIN;
+
+\echo == CreateUser
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO USER_LIST(list_type) VALUES ('block');
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT currval('user_list_list_id_seq');
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO USER_LIST(list_type) VALUES ('contact');
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO USR (phoneNum, login, password, pw_salt, pw_iterations, block_list, contact_list)
+VALUES ('+00000000000', 'explain_user', 'explain', '00', 1,
+        currval('user_list_list_id_seq') - 1, currval('user_list_list_id_seq'));
+
+\echo == CreateChat
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO chat(chat_type, init_sender) VALUES ('group', :'login');
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT currval('chat_chat_id_seq');
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO chat_list (chat_id, member)
+VALUES (currval('chat_chat_id_seq'), :'login'), (currval('chat_chat_id_seq'), :'other');
+
+\echo == AddMembersToChat
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO chat_list (chat_id, member) VALUES (:chat_id, :'other');
+
+\echo == AddToBlock, AddToContact
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO USER_LIST_CONTAINS (list_id, list_member)
+(SELECT u1.block_list AS list_id, u2.login AS list_member
+ FROM usr u1, usr u2 WHERE u1.login = :'login' AND u2.login = :'other');
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO USER_LIST_CONTAINS (list_id, list_member)
+(SELECT u1.contact_list AS list_id, u2.login AS list_member
+ FROM usr u1, usr u2 WHERE u1.login = :'login' AND u2.login = :'other');
+
+\echo == RemoveFromBlock, RemoveFromContact
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM user_list_contains
+WHERE list_id IN (SELECT block_list AS list_id FROM usr WHERE login = :'login') AND list_member = :'other';
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM user_list_contains
+WHERE list_id IN (SELECT contact_list AS list_id FROM usr WHERE login = :'login') AND list_member = :'other';
+
+\echo == UpdateStatus
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE usr SET status = 'explain' WHERE login = :'login';
+
+\echo == SetChatRetention
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE chat SET retention_days = 30 WHERE chat_id = :chat_id AND init_sender = :'login';
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE chat SET retention_days = NULL WHERE chat_id = :chat_id AND init_sender = :'login';
+
+\echo == storePassword
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE usr SET password = 'explain', pw_salt = '00', pw_iterations = 1 WHERE login = :'login';
+
+\echo == PostMessage
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO message (msg_text, msg_timestamp, sender_login, chat_id)
+VALUES ('explain', now(), :'login', :chat_id)
+RETURNING msg_id, sender_login, msg_timestamp, msg_text;
+
+\echo == EditSingleMessage
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE message SET msg_text = 'explain' WHERE msg_id = :msg_id AND chat_id = :chat_id;
+
+\echo == DeleteSingleMessage
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message WHERE msg_id = :msg_id AND chat_id = :chat_id AND (sender_login = :'login' OR EXISTS
+(SELECT 1 FROM chat WHERE chat_id = :chat_id AND init_sender = :'login'));
+
+\echo == purgeMessages (DeleteChat, reapDeletedUsers)
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message WHERE msg_id IN
+(SELECT msg_id FROM message WHERE chat_id = :chat_id LIMIT 1000);
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message WHERE msg_id IN
+(SELECT msg_id FROM message WHERE sender_login = :'login' LIMIT 1000);
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message WHERE msg_id IN
+(SELECT msg_id FROM message WHERE chat_id IN
+ (SELECT chat_id FROM chat WHERE init_sender = :'login') LIMIT 1000);
+
+\echo == claimRetentionPurge, purgeExpiredMessages
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE settings SET last_purge = now() WHERE id = 1 AND
+(last_purge IS NULL OR last_purge < now() - interval '1 hour' * 24);
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT retention_days FROM settings WHERE id = 1;
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT chat_id, retention_days FROM chat WHERE retention_days IS NOT NULL;
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message WHERE msg_id IN
+(SELECT msg_id FROM message WHERE chat_id = :chat_id
+ AND msg_timestamp < now() - interval '30 days' LIMIT 1000);
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message WHERE msg_id IN
+(SELECT msg_id FROM message WHERE msg_timestamp < now() - interval '365 days'
+ AND chat_id NOT IN (SELECT chat_id FROM chat WHERE retention_days IS NOT NULL)
+ LIMIT 1000);
+
+\echo == compactMessageLog
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM message_log WHERE log_id IN
+(SELECT log_id FROM message_log WHERE logged_at < now() - interval '7 days' LIMIT 1000);
+
+\echo == RemoveMembersFromChat
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM chat_list WHERE chat_id = :chat_id AND member = :'login';
+
+\echo == DeleteChat
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT init_sender FROM chat WHERE chat_id = :chat_id FOR UPDATE;
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM chat WHERE chat_id = :chat_id;
+
+\echo == DropUser (deleteUser, reapDeletedUsers)
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE usr SET deleted_at = now() WHERE login = :'login';
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT login FROM usr WHERE deleted_at IS NOT NULL;
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM usr WHERE login = :'login' AND deleted_at IS NOT NULL;
+
+ROLLBACK;
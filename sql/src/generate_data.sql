@@ -0,0 +1,36 @@
+-- GENERATED DATASET OF :scale USERS, :scale / 10 CHATS AND 100 MESSAGES PER CHAT
+-- run with: psql -v scale=<users> < generate_data.sql (scale is a multiple of 10)
+
+INSERT INTO USER_LIST(list_id, list_type)
+SELECT i, CASE WHEN i % 2 = 0 THEN 'block' ELSE 'contact' END
+FROM generate_series(0, 2 * :scale - 1) i;
+SELECT setval('user_list_list_id_seq', 2 * :scale);
+
+INSERT INTO USR(login, phoneNum, password, status, block_list, contact_list)
+SELECT 'user_' || i, '+1' || lpad(i::text, 10, '0'), 'password', 'status of user_' || i, 2 * i, 2 * i + 1
+FROM generate_series(0, :scale - 1) i;
+
+-- five contacts and one blocked user each
+INSERT INTO USER_LIST_CONTAINS(list_id, list_member)
+SELECT 2 * i + 1, 'user_' || ((i + k) % :scale)
+FROM generate_series(0, :scale - 1) i, generate_series(1, 5) k;
+
+INSERT INTO USER_LIST_CONTAINS(list_id, list_member)
+SELECT 2 * i, 'user_' || ((i + 7) % :scale)
+FROM generate_series(0, :scale - 1) i;
+
+-- ten members per chat
+INSERT INTO CHAT(chat_id, chat_type, init_sender)
+SELECT c, 'group', 'user_' || (c * 10)
+FROM generate_series(0, :scale / 10 - 1) c;
+SELECT setval('chat_chat_id_seq', :scale / 10);
+
+INSERT INTO CHAT_LIST(chat_id, member)
+SELECT c, 'user_' || (c * 10 + k)
+FROM generate_series(0, :scale / 10 - 1) c, generate_series(0, 9) k;
+
+INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id)
+SELECT 'message ' || m || ' of chat ' || c, now() - m * interval '1 minute', 'user_' || (c * 10 + m % 10), c
+FROM generate_series(0, :scale / 10 - 1) c, generate_series(1, 100) m;
+
+ANALYZE;
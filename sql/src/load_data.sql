@@ -4,6 +4,12 @@ WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM '/tmp/jsong022/project/data/usr.csv'
 WITH DELIMITER ';';
 
@@ -12,6 +18,9 @@ FROM '/tmp/jsong022/project/data/usr_list_contains.csv'
 WITH DELIMITER ';';
 
 COPY CHAT
+	(chat_id,
+	chat_type,
+	init_sender)
 FROM '/tmp/jsong022/project/data/chat.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;